@@ -0,0 +1,233 @@
+package edu.hawaii.omr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Reads the music from a batch of pages on a work-stealing pool. Every page is a task that forks a
+ * task per staff, which in turn forks a task per measure, so idle workers steal the staffs and
+ * measures of large pages while small pages finish. The time each page takes is recorded so that
+ * the throughput of the batch can be summarized.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class BatchScheduler {
+
+  private final ForkJoinPool threadPool;
+
+  private int numPages = 0;
+  private int numFailed = 0;
+  private long elapsedTime = 0;
+  private long[] latencies = new long[0];
+
+  /**
+   * Creates a new scheduler.
+   * 
+   * @param parallelism
+   *          The number of worker threads to process the pages on.
+   */
+  public BatchScheduler(int parallelism) {
+    this.threadPool = new ForkJoinPool(parallelism);
+  }
+
+  /**
+   * Reads the music from every page and writes it to results/[page name]/batch.
+   * 
+   * @param files
+   *          The paths of the page images.
+   */
+  public void run(List<String> files) {
+    this.numPages = 0;
+    this.numFailed = 0;
+    this.elapsedTime = 0;
+    this.latencies = new long[0];
+
+    List<PageTask> tasks = new ArrayList<>(files.size());
+    for (String file : files) {
+      tasks.add(new PageTask(file));
+    }
+
+    long start = System.nanoTime();
+    for (PageTask task : tasks) {
+      this.threadPool.execute(task);
+    }
+
+    long[] latencies = new long[tasks.size()];
+    int numFinished = 0;
+    for (PageTask task : tasks) {
+      long latency = task.join();
+      if (latency < 0) {
+        this.numFailed++;
+      }
+      else {
+        latencies[numFinished++] = latency;
+      }
+    }
+    this.elapsedTime = System.nanoTime() - start;
+    this.numPages = tasks.size();
+    this.latencies = Arrays.copyOf(latencies, numFinished);
+    Arrays.sort(this.latencies);
+
+    // The pages share the pooled buffers while they run, so only free them once all are done
+    MatPool.clear();
+  }
+
+  public void shutdown() {
+    this.threadPool.shutdown();
+  }
+
+  /**
+   * Gets the number of pages finished per minute in the last batch.
+   */
+  public double getPagesPerMinute() {
+    return this.elapsedTime == 0 ? 0 : this.latencies.length * 60e9 / this.elapsedTime;
+  }
+
+  /**
+   * Gets the given percentile of the time taken by the pages of the last batch, using the nearest
+   * rank.
+   * 
+   * @param percentile
+   *          The percentile, from 0 to 100.
+   * @return The time in milliseconds, or 0 if no pages were finished.
+   */
+  public double getLatencyPercentile(double percentile) {
+    if (this.latencies.length == 0) {
+      return 0;
+    }
+    int rank = (int) Math.ceil(percentile / 100.0 * this.latencies.length);
+    return this.latencies[Math.min(this.latencies.length - 1, Math.max(0, rank - 1))] / 1e6;
+  }
+
+  /**
+   * Gets a summary of the throughput of the last batch.
+   */
+  public String getSummary() {
+    return String.format("%d pages (%d failed) in %.1f s, %.2f pages/min, p50 %.0f ms, p95 %.0f ms",
+        this.numPages, this.numFailed, this.elapsedTime / 1e9, this.getPagesPerMinute(),
+        this.getLatencyPercentile(50), this.getLatencyPercentile(95));
+  }
+
+  /**
+   * Finds the staffs of a page, then reads their music in parallel.
+   */
+  private static class PageTask extends RecursiveTask<Long> {
+    private static final long serialVersionUID = 1L;
+
+    private String file;
+
+    public PageTask(String file) {
+      this.file = file;
+    }
+
+    /**
+     * @return The time taken to process the page in nanoseconds, or -1 if it failed.
+     */
+    @Override
+    protected Long compute() {
+      long start = System.nanoTime();
+      SheetMusicMatrix image = null;
+      List<StaffMatrix> staffs = Collections.emptyList();
+      try {
+        image = SheetMusicMatrix.readImage(this.file, Highgui.CV_LOAD_IMAGE_GRAYSCALE, false);
+        image.close(Imgproc.MORPH_RECT, 3, 3);
+        image.findStaffLines(getPool());
+        image.mergeStaffs();
+        staffs = image.splitImage();
+        image.close();
+
+        List<StaffTask> tasks = new ArrayList<>(staffs.size());
+        for (StaffMatrix staff : staffs) {
+          tasks.add(new StaffTask(staff));
+        }
+        invokeAll(tasks);
+
+        StringBuilder builder = new StringBuilder();
+        for (StaffTask task : tasks) {
+          builder.append(task.join());
+        }
+
+        String folder = "results/" + this.file.substring(0, this.file.lastIndexOf('.')) + "/batch";
+        Helpers.makeFolder(folder);
+        Helpers.writeMusic(folder, builder.toString());
+      }
+      catch (RuntimeException e) {
+        System.out.println("Failed to process " + this.file + "...");
+        e.printStackTrace();
+        return -1L;
+      }
+      finally {
+        // Closing twice does nothing, so close everything in case a stage failed part way
+        if (image != null) {
+          image.close();
+        }
+        for (StaffMatrix staff : staffs) {
+          staff.close();
+        }
+      }
+      return System.nanoTime() - start;
+    }
+  }
+
+  /**
+   * Removes the staff lines from a staff and splits it into measures, then finds the notes of the
+   * measures in parallel.
+   */
+  private static class StaffTask extends RecursiveTask<String> {
+    private static final long serialVersionUID = 1L;
+
+    private StaffMatrix staff;
+
+    public StaffTask(StaffMatrix staff) {
+      this.staff = staff;
+    }
+
+    @Override
+    protected String compute() {
+      try {
+        // Remove the staff lines on this pool, the later stages reuse the image
+        this.staff.getNoLineImage(getPool());
+        this.staff.findMeasureLines(true);
+        List<MeasureMatrix> measures = this.staff.splitIntoMeasures(true);
+
+        List<MeasureTask> tasks = new ArrayList<>(measures.size());
+        for (MeasureMatrix measure : measures) {
+          tasks.add(new MeasureTask(measure));
+        }
+        invokeAll(tasks);
+
+        StringBuilder builder = new StringBuilder();
+        for (MeasureMatrix measure : measures) {
+          measure.getPitches(builder);
+        }
+        return builder.toString();
+      }
+      finally {
+        this.staff.close();
+      }
+    }
+  }
+
+  private static class MeasureTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private MeasureMatrix measure;
+
+    public MeasureTask(MeasureMatrix measure) {
+      this.measure = measure;
+    }
+
+    @Override
+    protected void compute() {
+      this.measure.findNotes();
+    }
+  }
+}
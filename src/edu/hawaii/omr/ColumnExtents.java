@@ -0,0 +1,215 @@
+package edu.hawaii.omr;
+
+import java.util.Arrays;
+
+/**
+ * The topmost and bottommost rows covered in each column of a shape, kept in primitive arrays that
+ * grow to either side as columns are added. Anything between the top and bottom of a column is
+ * considered to be covered.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class ColumnExtents implements Cloneable {
+
+  /**
+   * The column that index 0 of the arrays corresponds to.
+   */
+  private int originX = 0;
+
+  /**
+   * The top row of each column, or Integer.MAX_VALUE if the column is not covered.
+   */
+  private int[] tops = null;
+
+  /**
+   * The bottom row of each column, or Integer.MIN_VALUE if the column is not covered.
+   */
+  private int[] bottoms = null;
+
+  private int minX = Integer.MAX_VALUE;
+  private int maxX = Integer.MIN_VALUE;
+  private int minY = Integer.MAX_VALUE;
+  private int maxY = Integer.MIN_VALUE;
+  private int numColumns = 0;
+
+  public void add(int x, int y) {
+    this.add(x, y, y);
+  }
+
+  /**
+   * Adds the rows from top to bottom (inclusive) of the given column.
+   */
+  public void add(int x, int top, int bottom) {
+    this.ensureColumns(x, x);
+    this.addToColumn(x - this.originX, top, bottom);
+    this.minX = Math.min(this.minX, x);
+    this.maxX = Math.max(this.maxX, x);
+  }
+
+  /**
+   * Adds a horizontal run of pixels in the given row.
+   */
+  public void addRun(int y, int startX, int endX) {
+    this.ensureColumns(startX, endX);
+    for (int i = startX - this.originX, end = endX - this.originX; i <= end; i++) {
+      this.addToColumn(i, y, y);
+    }
+    this.minX = Math.min(this.minX, startX);
+    this.maxX = Math.max(this.maxX, endX);
+  }
+
+  /**
+   * Adds every column of the other extents to these extents.
+   */
+  public void addAll(ColumnExtents other) {
+    if (other.isEmpty()) {
+      return;
+    }
+    this.ensureColumns(other.minX, other.maxX);
+    for (int x = other.minX; x <= other.maxX; x++) {
+      int index = x - other.originX;
+      if (other.tops[index] <= other.bottoms[index]) {
+        this.addToColumn(x - this.originX, other.tops[index], other.bottoms[index]);
+      }
+    }
+    this.minX = Math.min(this.minX, other.minX);
+    this.maxX = Math.max(this.maxX, other.maxX);
+  }
+
+  public boolean isEmpty() {
+    return this.numColumns == 0;
+  }
+
+  public int getMinX() {
+    return this.minX;
+  }
+
+  public int getMaxX() {
+    return this.maxX;
+  }
+
+  /**
+   * Gets the topmost row of any column.
+   */
+  public int getMinY() {
+    return this.minY;
+  }
+
+  /**
+   * Gets the bottommost row of any column.
+   */
+  public int getMaxY() {
+    return this.maxY;
+  }
+
+  /**
+   * Gets the number of columns that are covered.
+   */
+  public int countColumns() {
+    return this.numColumns;
+  }
+
+  public boolean covers(int x) {
+    return x >= this.minX && x <= this.maxX && this.tops[x - this.originX] != Integer.MAX_VALUE;
+  }
+
+  public boolean contains(int x, int y) {
+    return this.covers(x) && y >= this.getTop(x) && y <= this.getBottom(x);
+  }
+
+  /**
+   * Gets the top row of the given column, which must be covered.
+   */
+  public int getTop(int x) {
+    return this.tops[x - this.originX];
+  }
+
+  /**
+   * Gets the bottom row of the given column, which must be covered.
+   */
+  public int getBottom(int x) {
+    return this.bottoms[x - this.originX];
+  }
+
+  public void translateVertically(int amount) {
+    if (this.isEmpty()) {
+      return;
+    }
+    for (int i = this.minX - this.originX, end = this.maxX - this.originX; i <= end; i++) {
+      if (this.tops[i] != Integer.MAX_VALUE) {
+        this.tops[i] += amount;
+        this.bottoms[i] += amount;
+      }
+    }
+    this.minY += amount;
+    this.maxY += amount;
+  }
+
+  @Override
+  public ColumnExtents clone() {
+    ColumnExtents clone = new ColumnExtents();
+    if (!this.isEmpty()) {
+      clone.originX = this.minX;
+      int from = this.minX - this.originX;
+      int to = this.maxX - this.originX + 1;
+      clone.tops = Arrays.copyOfRange(this.tops, from, to);
+      clone.bottoms = Arrays.copyOfRange(this.bottoms, from, to);
+      clone.minX = this.minX;
+      clone.maxX = this.maxX;
+      clone.minY = this.minY;
+      clone.maxY = this.maxY;
+      clone.numColumns = this.numColumns;
+    }
+    return clone;
+  }
+
+  private void addToColumn(int index, int top, int bottom) {
+    if (this.tops[index] == Integer.MAX_VALUE) {
+      this.numColumns++;
+    }
+    if (top < this.tops[index]) {
+      this.tops[index] = top;
+    }
+    if (bottom > this.bottoms[index]) {
+      this.bottoms[index] = bottom;
+    }
+    this.minY = Math.min(this.minY, top);
+    this.maxY = Math.max(this.maxY, bottom);
+  }
+
+  /**
+   * Grows the arrays so that they cover the given columns, at least doubling their size so that
+   * repeated growth is cheap.
+   */
+  private void ensureColumns(int startX, int endX) {
+    if (this.tops == null) {
+      this.originX = startX;
+      this.tops = new int[endX - startX + 1];
+      this.bottoms = new int[endX - startX + 1];
+      Arrays.fill(this.tops, Integer.MAX_VALUE);
+      Arrays.fill(this.bottoms, Integer.MIN_VALUE);
+      return;
+    }
+    int length = this.tops.length;
+    if (startX >= this.originX && endX < this.originX + length) {
+      return;
+    }
+
+    int newOrigin = Math.min(startX, this.originX);
+    int newEnd = Math.max(endX, this.originX + length - 1);
+    int newLength = Math.max(newEnd - newOrigin + 1, length * 2);
+    if (startX < this.originX) {
+      newOrigin = newEnd - newLength + 1;
+    }
+    int[] tops = new int[newLength];
+    int[] bottoms = new int[newLength];
+    Arrays.fill(tops, Integer.MAX_VALUE);
+    Arrays.fill(bottoms, Integer.MIN_VALUE);
+    System.arraycopy(this.tops, 0, tops, this.originX - newOrigin, length);
+    System.arraycopy(this.bottoms, 0, bottoms, this.originX - newOrigin, length);
+    this.originX = newOrigin;
+    this.tops = tops;
+    this.bottoms = bottoms;
+  }
+}
@@ -0,0 +1,109 @@
+package edu.hawaii.omr;
+
+/**
+ * Statistics about a single connected component: its area, bounding box and the top and bottom
+ * rows that it covers in each column. Built up from the component's runs in row order without
+ * keeping the individual pixels.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class ComponentStats {
+
+  private static final int notSet = -1;
+
+  private final int label;
+  private int area = 0;
+  private int minY = Integer.MAX_VALUE;
+  private int maxY = Integer.MIN_VALUE;
+  private final ColumnExtents columns = new ColumnExtents();
+
+  public ComponentStats(int label) {
+    this.label = label;
+  }
+
+  /**
+   * Adds a horizontal run of pixels to the component.
+   * 
+   * @param y
+   *          The row of the run.
+   * @param startX
+   *          The first column of the run.
+   * @param endX
+   *          The last column of the run.
+   */
+  public void addRun(int y, int startX, int endX) {
+    this.columns.addRun(y, startX, endX);
+    this.area += endX - startX + 1;
+    this.minY = Math.min(this.minY, y);
+    this.maxY = Math.max(this.maxY, y);
+  }
+
+  public int getLabel() {
+    return this.label;
+  }
+
+  public int getArea() {
+    return this.area;
+  }
+
+  public int getMinX() {
+    return this.columns.getMinX();
+  }
+
+  public int getMaxX() {
+    return this.columns.getMaxX();
+  }
+
+  public int getMinY() {
+    return this.minY;
+  }
+
+  public int getMaxY() {
+    return this.maxY;
+  }
+
+  /**
+   * Gets the top and bottom rows that the component covers in each column.
+   * 
+   * @return The column extents of the component.
+   */
+  public ColumnExtents getColumns() {
+    return this.columns;
+  }
+
+  /**
+   * Gets the pixel that comes first when ordered by {@link Point.XComparator}, the top pixel of the
+   * leftmost column.
+   * 
+   * @return The first pixel of the component.
+   */
+  public Point getFirstPoint() {
+    return new Point(this.getMinX(), this.getColumnTop(this.getMinX()));
+  }
+
+  /**
+   * Checks if the component has any pixels in the given column.
+   */
+  public boolean coversColumn(int x) {
+    return this.columns.covers(x);
+  }
+
+  /**
+   * Gets the topmost row of the component in the given column.
+   * 
+   * @return The top row or -1 if the component does not cover the column.
+   */
+  public int getColumnTop(int x) {
+    return this.columns.covers(x) ? this.columns.getTop(x) : notSet;
+  }
+
+  /**
+   * Gets the bottommost row of the component in the given column.
+   * 
+   * @return The bottom row or -1 if the component does not cover the column.
+   */
+  public int getColumnBottom(int x) {
+    return this.columns.covers(x) ? this.columns.getBottom(x) : notSet;
+  }
+}
@@ -1,10 +1,17 @@
 package edu.hawaii.omr;
 
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Finds the connected components in the image using a 4-neighbor based classic component finding
@@ -18,14 +25,20 @@ public class ConnectedComponentFinder {
   private static Point.XComparator xComparator = new Point.XComparator();
 
   /**
-   * The union-find data structure that keeps track of the equivalences.
+   * The minimum number of rows in a strip that is labeled by a single task.
    */
-  private Map<Integer, Integer> unionFind;
+  private static final int minStripRows = 32;
+  private static final int stripsPerThread = 2;
 
   /**
-   * The labels assigned to the image's foreground.
+   * The labels assigned to the image's foreground, row by row. The label of (x, y) is at index y *
+   * width + x.
    */
-  private int[][] labels;
+  private int[] labels;
+
+  private int width;
+  private int height;
+  private int numLabels;
 
   /**
    * Finds the number of connected components in the given image.
@@ -34,21 +47,194 @@ public class ConnectedComponentFinder {
    *          TODO UPDATE COMMENT The {@link BufferedImage} to search.
    * @param foreground
    *          The color of the foreground.
-   * @return The number of connected components in the image.
+   * @return The labels assigned to the image's foreground, row by row.
+   */
+  public int[] findConnectedComponents(ImageMatrix image, int foreground) {
+    return this.findConnectedComponents(image.toRunLengthImage(foreground));
+  }
+
+  /**
+   * Finds the connected components in the given run-length encoded image. The final labels are
+   * numbered from 1 in the order that the components are first seen going row by row.
+   * 
+   * @param runs
+   *          The foreground runs of the image to search.
+   * @return The labels assigned to the image's foreground, row by row.
    */
-  public int[][] findConnectedComponents(ImageMatrix image, int foreground) {
-    setupDataStructures(image, foreground);
-    firstPass();
-    secondPass();
+  public int[] findConnectedComponents(RunLengthImage runs) {
+    setupDataStructures(runs);
+    this.numLabels = labelStrip(this.labels, this.width, 0, this.height);
+    return this.labels;
+  }
+
+  public int[] findConnectedComponents(ImageMatrix image, int foreground,
+      ExecutorService threadPool) {
+    return this.findConnectedComponents(image.toRunLengthImage(foreground), threadPool);
+  }
+
+  /**
+   * Finds the connected components in the given run-length encoded image in parallel. The image is
+   * split into strips of rows which are labeled independently on the given thread pool, and then
+   * the components that touch across the edges of the strips are joined. The labels are the same
+   * as the ones found by {@link #findConnectedComponents(RunLengthImage)}.
+   * 
+   * @param runs
+   *          The foreground runs of the image to search.
+   * @param threadPool
+   *          The pool to label the strips on.
+   * @return The labels assigned to the image's foreground, row by row.
+   */
+  public int[] findConnectedComponents(RunLengthImage runs, ExecutorService threadPool) {
+    setupDataStructures(runs);
+
+    int numStrips = Runtime.getRuntime().availableProcessors() * stripsPerThread;
+    int stripRows = Math.max(minStripRows, (this.height + numStrips - 1) / numStrips);
+    List<LabelStripCallable> callables = new ArrayList<>();
+    for (int y = 0; y < this.height; y += stripRows) {
+      callables.add(new LabelStripCallable(this.labels, this.width, y,
+          Math.min(y + stripRows, this.height)));
+    }
+
+    // Give each strip its own range of labels
+    int[] offsets = new int[callables.size() + 1];
+    try {
+      List<Future<Integer>> results = threadPool.invokeAll(callables);
+      for (int i = 0; i < results.size(); i++) {
+        offsets[i + 1] = offsets[i] + results.get(i).get();
+      }
+    }
+    catch (InterruptedException e) {
+      // The strips' label ranges are incomplete, so label the image on this thread instead and
+      // leave the interrupt for the caller
+      Thread.currentThread().interrupt();
+      return this.findConnectedComponents(runs);
+    }
+    catch (ExecutionException e) {
+      // Same here, a strip that failed would give the other strips overlapping label ranges
+      return this.findConnectedComponents(runs);
+    }
+
+    // Join the components that touch across the edge between each pair of strips
+    UnionFind unionFind = new UnionFind(offsets[callables.size()] + 1);
+    for (int label = 1; label <= offsets[callables.size()]; label++) {
+      unionFind.makeSet(label);
+    }
+    for (int i = 1; i < callables.size(); i++) {
+      int below = callables.get(i).startRow * this.width;
+      int above = below - this.width;
+      for (int x = 0; x < this.width; x++) {
+        if (this.labels[above + x] != 0 && this.labels[below + x] != 0) {
+          unionFind.union(offsets[i - 1] + this.labels[above + x], offsets[i]
+              + this.labels[below + x]);
+        }
+      }
+    }
+
+    // A component is first seen at its smallest label, so numbering the roots in label order gives
+    // the same labels as labeling the whole image at once
+    int[] finalLabels = new int[offsets[callables.size()] + 1];
+    int[] rootLabels = new int[offsets[callables.size()] + 1];
+    this.numLabels = 0;
+    for (int label = 1; label < finalLabels.length; label++) {
+      int root = unionFind.find(label);
+      if (rootLabels[root] == 0) {
+        this.numLabels++;
+        rootLabels[root] = this.numLabels;
+      }
+      finalLabels[label] = rootLabels[root];
+    }
+
+    for (int i = 0; i < callables.size(); i++) {
+      LabelStripCallable strip = callables.get(i);
+      int end = strip.endRow * this.width;
+      for (int index = strip.startRow * this.width; index < end; index++) {
+        if (this.labels[index] != 0) {
+          this.labels[index] = finalLabels[offsets[i] + this.labels[index]];
+        }
+      }
+    }
     return this.labels;
   }
 
+  /**
+   * Finds the connected components in the given run-length encoded image and collects statistics
+   * about each of them in the same pass, without labeling the individual pixels. Runs in
+   * neighboring rows that share a column are joined, which matches the 4-neighbor labeling. After
+   * this, {@link #countLabels()} returns the number of components but there is no label image.
+   * 
+   * @param runs
+   *          The foreground runs of the image to search.
+   * @return The statistics of each component, ordered the same way as the final labels.
+   */
+  public List<ComponentStats> findComponentStats(RunLengthImage runs) {
+    this.width = runs.cols();
+    this.height = runs.rows();
+    this.labels = null;
+    this.numLabels = 0;
+
+    // Each run gets its own label, numbered in row order
+    int numRuns = runs.countRowRuns();
+    UnionFind unionFind = new UnionFind(numRuns + 1);
+    int label = 1;
+    int previousFirstLabel = 1;
+    int previousCount = 0;
+    for (int y = 0; y < this.height; y++) {
+      int count = runs.getRowRunCount(y);
+      int previous = 0;
+      for (int run = 0; run < count; run++, label++) {
+        int start = runs.getRowRunStart(y, run);
+        int end = runs.getRowRunEnd(y, run);
+        unionFind.makeSet(label);
+
+        // Join with the runs above that share a column
+        while (previous < previousCount && runs.getRowRunEnd(y - 1, previous) < start) {
+          previous++;
+        }
+        for (int above = previous; above < previousCount
+            && runs.getRowRunStart(y - 1, above) <= end; above++) {
+          unionFind.union(label, previousFirstLabel + above);
+        }
+      }
+      previousFirstLabel = label - count;
+      previousCount = count;
+    }
+
+    List<ComponentStats> components = new ArrayList<>();
+    int[] componentIndices = new int[numRuns + 1];
+    label = 1;
+    for (int y = 0; y < this.height; y++) {
+      for (int run = 0, count = runs.getRowRunCount(y); run < count; run++, label++) {
+        int root = unionFind.find(label);
+        if (componentIndices[root] == 0) {
+          this.numLabels++;
+          componentIndices[root] = this.numLabels;
+          components.add(new ComponentStats(this.numLabels));
+        }
+        components.get(componentIndices[root] - 1).addRun(y, runs.getRowRunStart(y, run),
+            runs.getRowRunEnd(y, run));
+      }
+    }
+    return components;
+  }
+
+  public int getWidth() {
+    return this.width;
+  }
+
+  public int getHeight() {
+    return this.height;
+  }
+
+  public int getLabel(int x, int y) {
+    return this.labels[y * this.width + x];
+  }
+
   public Map<Integer, SortedSet<Point>> makeLabelMap() {
     Map<Integer, SortedSet<Point>> map = new HashMap<>();
     if (this.labels != null) {
-      for (int y = 0, height = this.labels.length; y < height; y++) {
-        for (int x = 0, width = this.labels[y].length; x < width; x++) {
-          int label = this.labels[y][x];
+      for (int y = 0, i = 0; y < this.height; y++) {
+        for (int x = 0; x < this.width; x++, i++) {
+          int label = this.labels[i];
           if (label != 0) {
             if (!map.containsKey(label)) {
               map.put(label, new TreeSet<>(xComparator));
@@ -62,63 +248,69 @@ public class ConnectedComponentFinder {
   }
 
   /**
-   * Sets up the unionFind and labels data structures.
+   * Sets up the labels data structure.
    * 
-   * @param image
-   *          TODO UPDATE COMMENT The image that will be searched for connected components.
-   * @param foreground
-   *          The color of the foreground in the image.
+   * @param runs
+   *          The foreground runs of the image that will be searched for connected components.
    */
-  private void setupDataStructures(ImageMatrix image, int foreground) {
-    this.unionFind = new HashMap<>();
-    this.labels = new int[image.rows()][image.cols()];
-
-    for (int i = 0; i < image.rows(); i++) {
-      for (int j = 0; j < image.cols(); j++) {
-        if (image.get(i, j)[0] == foreground) {
-          this.labels[i][j] = 1;
-        }
+  private void setupDataStructures(RunLengthImage runs) {
+    this.width = runs.cols();
+    this.height = runs.rows();
+    this.labels = new int[this.width * this.height];
+    this.numLabels = 0;
+
+    for (int i = 0; i < this.height; i++) {
+      int rowOffset = i * this.width;
+      for (int run = 0, numRuns = runs.getRowRunCount(i); run < numRuns; run++) {
+        Arrays.fill(this.labels, rowOffset + runs.getRowRunStart(i, run),
+            rowOffset + runs.getRowRunEnd(i, run) + 1, 1);
       }
     }
   }
 
+  /**
+   * Labels the rows [startRow, endRow) as if they were the whole image. The foreground must be
+   * marked with 1.
+   * 
+   * @return The number of components in the strip, which are labeled from 1.
+   */
+  private static int labelStrip(int[] labels, int width, int startRow, int endRow) {
+    UnionFind unionFind = new UnionFind(64);
+    firstPass(labels, width, startRow, endRow, unionFind);
+    return secondPass(labels, width, startRow, endRow, unionFind);
+  }
+
   /**
    * Performs the first pass of the classic component finding algorithm and finds the temporary
    * labels.
    */
-  private void firstPass() {
+  private static void firstPass(int[] labels, int width, int startRow, int endRow,
+      UnionFind unionFind) {
     int nextLabel = 1;
 
-    for (int i = 0; i < this.labels.length; i++) {
-      for (int j = 0; j < this.labels[i].length; j++) {
+    for (int i = startRow, index = startRow * width; i < endRow; i++) {
+      for (int j = 0; j < width; j++, index++) {
 
         // Check foreground pixels.
-        if (this.labels[i][j] == 1) {
+        if (labels[index] == 1) {
           int label = 0;
 
           // Check neighbor directly above.
-          if (i > 0 && this.labels[i - 1][j] != 0) {
-            label = this.labels[i - 1][j];
+          if (i > startRow && labels[index - width] != 0) {
+            label = labels[index - width];
           }
 
           // Check neighbor to the left.
-          if (j > 0 && this.labels[i][j - 1] != 0) {
-
-            // If conflict, choose the smaller label and add
-            // other label to the union-find structure.
-            if (label != 0 && label != this.labels[i][j - 1]) {
-              if (this.labels[i][j - 1] < label) {
-                this.unionFind.put(label, this.labels[i][j - 1]);
-                label = this.labels[i][j - 1];
-              }
-              else {
-                this.unionFind.put(this.labels[i][j - 1], label);
-              }
+          if (j > 0 && labels[index - 1] != 0) {
+
+            // If conflict, merge the two sets in the union-find structure.
+            if (label != 0 && label != labels[index - 1]) {
+              unionFind.union(label, labels[index - 1]);
             }
 
             // No conflict
             else {
-              label = this.labels[i][j - 1];
+              label = labels[index - 1];
             }
           }
 
@@ -126,9 +318,10 @@ public class ConnectedComponentFinder {
           if (label == 0) {
             label = nextLabel;
             nextLabel++;
+            unionFind.makeSet(label);
           }
 
-          this.labels[i][j] = label;
+          labels[index] = label;
         }
       }
     }
@@ -136,18 +329,25 @@ public class ConnectedComponentFinder {
 
   /**
    * Performs the second pass of the classic component finding algorithm and replaces equivalent
-   * labels to find the final labeling.
+   * labels with the final labels.
+   * 
+   * @return The number of final labels.
    */
-  private void secondPass() {
-    for (int i = 0; i < this.labels.length; i++) {
-      for (int j = 0; j < this.labels[i].length; j++) {
-        if (this.labels[i][j] != 0) {
-          while (this.unionFind.containsKey(this.labels[i][j])) {
-            this.labels[i][j] = this.unionFind.get(this.labels[i][j]);
-          }
+  private static int secondPass(int[] labels, int width, int startRow, int endRow,
+      UnionFind unionFind) {
+    int numLabels = 0;
+    int[] finalLabels = new int[unionFind.size()];
+    for (int i = startRow * width, end = endRow * width; i < end; i++) {
+      if (labels[i] != 0) {
+        int root = unionFind.find(labels[i]);
+        if (finalLabels[root] == 0) {
+          numLabels++;
+          finalLabels[root] = numLabels;
         }
+        labels[i] = finalLabels[root];
       }
     }
+    return numLabels;
   }
 
   /**
@@ -156,17 +356,95 @@ public class ConnectedComponentFinder {
    * @return The number of labels in the labels data structure.
    */
   public int countLabels() {
-    Map<Integer, Integer> found = new HashMap<>();
+    return this.numLabels;
+  }
 
-    for (int i = 0; i < this.labels.length; i++) {
-      for (int j = 0; j < this.labels[i].length; j++) {
+  /**
+   * The union-find data structure that keeps track of the equivalences. parent[label] is the parent
+   * of the label, roots are their own parent.
+   */
+  private static class UnionFind {
+    private int[] parent;
 
-        if (this.labels[i][j] != 0 && !found.containsKey(this.labels[i][j])) {
-          found.put(this.labels[i][j], 1);
-        }
+    /**
+     * The upper bound on the height of each root's tree, used to keep the trees shallow.
+     */
+    private byte[] rank;
+
+    public UnionFind(int capacity) {
+      this.parent = new int[capacity];
+      this.rank = new byte[capacity];
+    }
+
+    public int size() {
+      return this.parent.length;
+    }
+
+    public void makeSet(int label) {
+      if (label >= this.parent.length) {
+        int newLength = Math.max(label + 1, this.parent.length * 2);
+        this.parent = Arrays.copyOf(this.parent, newLength);
+        this.rank = Arrays.copyOf(this.rank, newLength);
+      }
+      this.parent[label] = label;
+    }
+
+    /**
+     * Finds the root of the given label's set, pointing every label on the way directly at the
+     * root.
+     */
+    public int find(int label) {
+      int root = label;
+      while (this.parent[root] != root) {
+        root = this.parent[root];
+      }
+      while (this.parent[label] != root) {
+        int next = this.parent[label];
+        this.parent[label] = root;
+        label = next;
+      }
+      return root;
+    }
+
+    /**
+     * Merges the sets of the two labels, hanging the shorter tree under the taller one.
+     */
+    public void union(int label1, int label2) {
+      int root1 = this.find(label1);
+      int root2 = this.find(label2);
+      if (root1 == root2) {
+        return;
+      }
+      if (this.rank[root1] < this.rank[root2]) {
+        this.parent[root1] = root2;
+      }
+      else if (this.rank[root1] > this.rank[root2]) {
+        this.parent[root2] = root1;
+      }
+      else {
+        this.parent[root2] = root1;
+        this.rank[root1]++;
       }
     }
+  }
 
-    return found.keySet().size();
+  private static class LabelStripCallable implements Callable<Integer> {
+
+    private final int[] labels;
+    private final int width;
+    private final int startRow;
+    private final int endRow;
+
+    public LabelStripCallable(int[] labels, int width, int startRow, int endRow) {
+      this.labels = labels;
+      this.width = width;
+      this.startRow = startRow;
+      this.endRow = endRow;
+    }
+
+    @Override
+    public Integer call() throws Exception {
+      return labelStrip(this.labels, this.width, this.startRow, this.endRow);
+    }
   }
 }
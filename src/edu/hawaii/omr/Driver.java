@@ -1,21 +1,51 @@
 package edu.hawaii.omr;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import org.jfugue.MusicStringParser;
-import org.jfugue.MusicXmlRenderer;
-import org.jfugue.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import org.opencv.core.Core;
 import org.opencv.highgui.Highgui;
 import org.opencv.imgproc.Imgproc;
 
 public class Driver {
+  private static final String pipelineOption = "-pipeline";
+  private static final String batchOption = "-batch";
+  private static final String parallelismOption = "-parallelism";
+
+  /**
+   * The most threads that a {@link ForkJoinPool} can have.
+   */
+  private static final int maxParallelism = 0x7fff;
+
   static {
     System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
   }
 
   public static void main(String[] args) {
 
+    // Process the staffs of each page in parallel, only writing out the music, if asked to
+    List<String> files = new ArrayList<>(Arrays.asList(args));
+    boolean pipeline = files.remove(pipelineOption);
+    boolean batch = files.remove(batchOption);
+    int parallelism = Runtime.getRuntime().availableProcessors();
+    int parallelismIndex = files.indexOf(parallelismOption);
+    if (parallelismIndex >= 0) {
+      parallelism = parseParallelism(files, parallelismIndex + 1);
+      if (parallelism <= 0) {
+        System.out.println("Usage: " + parallelismOption + " must be followed by a number of "
+            + "threads from 1 to " + maxParallelism + ".");
+        return;
+      }
+      files.subList(parallelismIndex, parallelismIndex + 2).clear();
+    }
+
     try {
       System.out.println("Waiting... Press enter to go on...");
       System.in.read();
@@ -25,8 +55,22 @@ public class Driver {
       e.printStackTrace();
     }
     System.out.println("Going on...");
+
     Helpers.deleteFolder("results");
-    for (String file : args) {
+
+    // Schedule all of the pages at once, only writing out the music, if asked to
+    if (batch) {
+      System.out.println("Processing " + files.size() + " pages on " + parallelism + " threads...");
+      BatchScheduler scheduler = new BatchScheduler(parallelism);
+      scheduler.run(files);
+      scheduler.shutdown();
+      System.out.println(scheduler.getSummary());
+      System.out.println("Finished.");
+      return;
+    }
+
+    ExecutorService threadPool = pipeline ? Executors.newFixedThreadPool(parallelism) : null;
+    for (String file : files) {
       System.out.println("Processing " + file + "...");
       SheetMusicMatrix image =
           SheetMusicMatrix.readImage(file, Highgui.CV_LOAD_IMAGE_GRAYSCALE, false);
@@ -41,28 +85,112 @@ public class Driver {
       image.findStaffLines();
       ImageMatrix testLines = image.getStaffLineImage();
       testLines.writeImage(folder + "/lines.png");
+      testLines.close();
 
       System.out.println("Merging Staff Lines...");
       image.mergeStaffs();
       ImageMatrix lines = image.getStaffLineImage();
       lines.writeImage(folder + "/merged.png");
-      image.subtractImagePreserve(lines, false).invert().writeImage(folder + "/removed.png");
+      ImageMatrix removed = image.subtractImagePreserveParallel(lines, false).invert();
+      removed.writeImage(folder + "/removed.png");
+      removed.close();
+      lines.close();
 
       System.out.println("Splitting the image into staffs...");
       List<StaffMatrix> staffs = image.splitImage();
 
+      // The staffs are views of the image, so they keep its pixels
+      image.close();
+
       System.out.println("Splitting the staffs into measures...");
 
-      runStaffTests("results/" + file + "/staffs_line", staffs, false);
-      runStaffTests("results/" + file + "/staffs_noline", staffs, true);
+      if (pipeline) {
+        runPipeline("results/" + file + "/pipeline", staffs, true, threadPool);
+      }
+      else {
+        runStaffTests("results/" + file + "/staffs_line", staffs, false);
+        runStaffTests("results/" + file + "/staffs_noline", staffs, true);
+
+        runMeasureTests("results/" + file + "/measures_line", staffs, false);
+        runMeasureTests("results/" + file + "/measures_noline", staffs, true);
+      }
 
-      runMeasureTests("results/" + file + "/measures_line", staffs, false);
-      runMeasureTests("results/" + file + "/measures_noline", staffs, true);
+      for (StaffMatrix staff : staffs) {
+        staff.close();
+      }
     }
 
+    // Pages of the same size share the pooled buffers, so only free them once every page is done
+    MatPool.clear();
+    if (threadPool != null) {
+      threadPool.shutdown();
+    }
     System.out.println("Finished.");
   }
 
+  /**
+   * Parses the number of threads given after the parallelism option.
+   * 
+   * @return The number of threads, or 0 if it is missing or not a valid number of threads.
+   */
+  private static int parseParallelism(List<String> args, int index) {
+    if (index >= args.size()) {
+      return 0;
+    }
+    try {
+      int parallelism = Integer.parseInt(args.get(index));
+      return parallelism <= maxParallelism ? parallelism : 0;
+    }
+    catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Reads the music from each staff on the given thread pool and writes out the music of the whole
+   * page. Each staff has its own staff and image, and only shares the read-only staff info, so the
+   * staffs are independent until their music is joined back together in order.
+   */
+  private static void runPipeline(String folder, List<StaffMatrix> staffs, boolean removeLines,
+      ExecutorService threadPool) {
+    Helpers.makeFolder(folder);
+    List<StaffPipelineCallable> callables = new ArrayList<>(staffs.size());
+    for (StaffMatrix staff : staffs) {
+      callables.add(new StaffPipelineCallable(staff, removeLines));
+    }
+
+    List<Future<String>> results;
+    try {
+      results = threadPool.invokeAll(callables);
+    }
+    catch (InterruptedException e) {
+      // Leave the interrupt for the caller rather than writing out part of the music
+      System.out.println("Interrupted while reading " + folder + "...");
+      Thread.currentThread().interrupt();
+      return;
+    }
+
+    // Only write out the music if every staff was read, so a failed staff is not silently left out
+    StringBuilder builder = new StringBuilder();
+    boolean failed = false;
+    for (int i = 0; i < results.size(); i++) {
+      try {
+        builder.append(results.get(i).get());
+      }
+      catch (ExecutionException e) {
+        System.out.println("Failed to read staff " + (i + 1) + " of " + folder + "...");
+        e.getCause().printStackTrace();
+        failed = true;
+      }
+      catch (InterruptedException e) {
+        // Do nothing, the staffs are already done...
+      }
+    }
+    if (!failed) {
+      Helpers.writeMusic(folder, builder.toString());
+    }
+  }
+
   private static void runStaffTests(String folder, List<StaffMatrix> staffs, boolean removeLines) {
     int i = 1;
     int j = 1;
@@ -70,24 +198,22 @@ public class Driver {
     StringBuilder builder = new StringBuilder();
     for (StaffMatrix staff : staffs) {
       staff.findMeasureLines(removeLines);
-      staff.getMeasureLineImage().writeImage(folder + "/staff_" + i + ".png");
+      ImageMatrix measureLines = staff.getMeasureLineImage();
+      measureLines.writeImage(folder + "/staff_" + i + ".png");
+      measureLines.close();
       for(MeasureMatrix measure : staff.splitIntoMeasures(removeLines)) {
         measure.writeImage(folder + "/measure_" + j + ".png");
         j++;
       }
       MeasureMatrix measure = staff.toMeasureMatrix(removeLines);
-      measure.getNoteLocationsImage().writeImage(folder + "/notes_" + i + ".png");
+      ImageMatrix notes = measure.getNoteLocationsImage();
+      notes.writeImage(folder + "/notes_" + i + ".png");
+      notes.close();
       measure.getPitches(builder);
+      measure.close();
       i++;
     }
-    MusicStringParser parser = new MusicStringParser();
-    MusicXmlRenderer renderer = new MusicXmlRenderer();
-    parser.addParserListener(renderer);
-    parser.parse(new Pattern(builder.toString()));
-
-    String musicXml = renderer.getMusicXMLString();
-    Helpers.writeToFile(folder + "/musicXml.xml", musicXml);
-    Helpers.writeToFile(folder + "/musicstring.txt", builder.toString());
+    Helpers.writeMusic(folder, builder.toString());
   }
 
   private static void runMeasureTests(String folder, List<StaffMatrix> staffs, boolean removeLines) {
@@ -97,19 +223,38 @@ public class Driver {
     StringBuilder builder = new StringBuilder();
     for (StaffMatrix staff : staffs) {
       List<MeasureMatrix> measures = staff.splitIntoMeasures(removeLines);
+      MeasureMatrix.findNotes(measures, ForkJoinPool.commonPool());
       for (MeasureMatrix measure : measures) {
-        measure.getNoteLocationsImage().writeImage(folder + "/measure_" + i + ".png");
+        ImageMatrix notes = measure.getNoteLocationsImage();
+        notes.writeImage(folder + "/measure_" + i + ".png");
+        notes.close();
         measure.getPitches(builder);
         i++;
       }
     }
-    MusicStringParser parser = new MusicStringParser();
-    MusicXmlRenderer renderer = new MusicXmlRenderer();
-    parser.addParserListener(renderer);
-    parser.parse(new Pattern(builder.toString()));
+    Helpers.writeMusic(folder, builder.toString());
+  }
+
+  /**
+   * Finds the measure lines of a staff, removes its staff lines if asked to and reads the pitches
+   * of its notes.
+   */
+  private static class StaffPipelineCallable implements Callable<String> {
+    private StaffMatrix staff;
+    private boolean removeLines;
 
-    String musicXml = renderer.getMusicXMLString();
-    Helpers.writeToFile(folder + "/musicXml.xml", musicXml);
-    Helpers.writeToFile(folder + "/musicstring.txt", builder.toString());
+    public StaffPipelineCallable(StaffMatrix staff, boolean removeLines) {
+      this.staff = staff;
+      this.removeLines = removeLines;
+    }
+
+    @Override
+    public String call() throws Exception {
+      this.staff.findMeasureLines(this.removeLines);
+      List<MeasureMatrix> measures = this.staff.splitIntoMeasures(this.removeLines);
+      StringBuilder builder = new StringBuilder();
+      MeasureMatrix.getPitches(measures, ForkJoinPool.commonPool(), builder);
+      return builder.toString();
+    }
   }
 }
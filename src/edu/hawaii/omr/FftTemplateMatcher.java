@@ -0,0 +1,207 @@
+package edu.hawaii.omr;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Computes the same scores as {@link org.opencv.imgproc.Imgproc#matchTemplate} with
+ * TM_SQDIFF_NORMED, but correlates the templates with the image in the frequency domain. The image
+ * is cut into vertical blocks that overlap by the width of the template (overlap-save), and the
+ * spectrum of each block is computed once and reused for every template of the same size. The sums
+ * of squares under each template window come from an integral image.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class FftTemplateMatcher implements AutoCloseable {
+
+  /**
+   * The smallest width to transform at once, so that narrow templates do not cut the image into
+   * many tiny blocks.
+   */
+  private static final int minBlockWidth = 512;
+
+  private final Mat image;
+  private final int rows;
+  private final int cols;
+
+  /**
+   * The integral image of the squared pixels, with an extra row and column of zeros at the start.
+   */
+  private final long[] squareSums;
+
+  private final Map<Long, BlockSpectra> spectra = new HashMap<>();
+
+  /**
+   * Creates a new matcher for the given image.
+   * 
+   * @param image
+   *          The single channel 8-bit image to match templates against.
+   */
+  public FftTemplateMatcher(Mat image) {
+    this.rows = image.rows();
+    this.cols = image.cols();
+    this.image = new Mat();
+    image.convertTo(this.image, CvType.CV_64F);
+
+    PixelBuffer pixels = new PixelBuffer(image);
+    int sumCols = this.cols + 1;
+    this.squareSums = new long[(this.rows + 1) * sumCols];
+    for (int y = 0; y < this.rows; y++) {
+      long rowSum = 0;
+      for (int x = 0; x < this.cols; x++) {
+        int value = pixels.get(x, y);
+        rowSum += value * value;
+        this.squareSums[(y + 1) * sumCols + x + 1] = this.squareSums[y * sumCols + x + 1] + rowSum;
+      }
+    }
+  }
+
+  /**
+   * Computes the normalized squared differences between the template and every window of the
+   * image, where lower values are better matches.
+   * 
+   * @param template
+   *          The single channel 8-bit template, no larger than the image.
+   * @param result
+   *          The CV_32F matrix to store the scores in. Reallocated to (rows - template rows + 1) x
+   *          (cols - template cols + 1).
+   */
+  public void matchTemplate(Mat template, Mat result) {
+    int templateRows = template.rows();
+    int templateCols = template.cols();
+    int resultRows = this.rows - templateRows + 1;
+    int resultCols = this.cols - templateCols + 1;
+    BlockSpectra blocks = this.getSpectra(templateRows, templateCols);
+
+    // Transform the template at the same size as the blocks
+    Mat paddedTemplate = Mat.zeros(blocks.dftRows, blocks.dftCols, CvType.CV_64F);
+    template.convertTo(paddedTemplate.submat(0, templateRows, 0, templateCols), CvType.CV_64F);
+    Mat templateSpectrum = new Mat();
+    Core.dft(paddedTemplate, templateSpectrum, Core.DFT_COMPLEX_OUTPUT, templateRows);
+
+    long templateSquareSum = 0;
+    PixelBuffer templatePixels = new PixelBuffer(template);
+    for (int y = 0; y < templateRows; y++) {
+      for (int x = 0; x < templateCols; x++) {
+        int value = templatePixels.get(x, y);
+        templateSquareSum += value * value;
+      }
+    }
+
+    float[] scores = new float[resultRows * resultCols];
+    double[] correlation = new double[blocks.dftRows * blocks.dftCols];
+    Mat product = new Mat();
+    Mat blockCorrelation = new Mat();
+    for (int i = 0; i < blocks.spectra.size(); i++) {
+      Core.mulSpectrums(blocks.spectra.get(i), templateSpectrum, product, 0, true);
+      Core.idft(product, blockCorrelation, Core.DFT_SCALE | Core.DFT_REAL_OUTPUT, resultRows);
+      blockCorrelation.get(0, 0, correlation);
+
+      int startX = i * blocks.blockWidth;
+      int endX = Math.min(startX + blocks.blockWidth, resultCols);
+      for (int y = 0; y < resultRows; y++) {
+        for (int x = startX; x < endX; x++) {
+          double windowSquareSum = this.getWindowSquareSum(x, y, templateRows, templateCols);
+          scores[y * resultCols + x] =
+              (float) normalize(correlation[y * blocks.dftCols + x - startX], windowSquareSum,
+                  templateSquareSum);
+        }
+      }
+    }
+
+    result.create(resultRows, resultCols, CvType.CV_32F);
+    if (scores.length > 0) {
+      result.put(0, 0, scores);
+    }
+    paddedTemplate.release();
+    templateSpectrum.release();
+    product.release();
+    blockCorrelation.release();
+  }
+
+  /**
+   * Releases the image and the spectra of its blocks. The matcher must not be used afterwards.
+   */
+  @Override
+  public synchronized void close() {
+    this.image.release();
+    for (BlockSpectra blocks : this.spectra.values()) {
+      for (Mat spectrum : blocks.spectra) {
+        spectrum.release();
+      }
+    }
+    this.spectra.clear();
+  }
+
+  /**
+   * Gets the spectra of the image's blocks for templates of the given size, computing them if this
+   * is the first template of that size.
+   */
+  private synchronized BlockSpectra getSpectra(int templateRows, int templateCols) {
+    Long key = ((long) templateRows << 32) | templateCols;
+    BlockSpectra blocks = this.spectra.get(key);
+    if (blocks == null) {
+      blocks = new BlockSpectra();
+      blocks.dftRows = Core.getOptimalDFTSize(this.rows);
+      blocks.dftCols =
+          Core.getOptimalDFTSize(Math.min(this.cols, Math.max(minBlockWidth, 4 * templateCols)));
+      blocks.blockWidth = blocks.dftCols - templateCols + 1;
+
+      int resultCols = this.cols - templateCols + 1;
+      for (int startX = 0; startX < resultCols; startX += blocks.blockWidth) {
+        int width = Math.min(blocks.blockWidth + templateCols - 1, this.cols - startX);
+        Mat padded = Mat.zeros(blocks.dftRows, blocks.dftCols, CvType.CV_64F);
+        this.image.submat(0, this.rows, startX, startX + width).copyTo(
+            padded.submat(0, this.rows, 0, width));
+        Mat spectrum = new Mat();
+        Core.dft(padded, spectrum, Core.DFT_COMPLEX_OUTPUT, this.rows);
+        padded.release();
+        blocks.spectra.add(spectrum);
+      }
+      this.spectra.put(key, blocks);
+    }
+    return blocks;
+  }
+
+  private double getWindowSquareSum(int x, int y, int windowRows, int windowCols) {
+    int sumCols = this.cols + 1;
+    int top = y * sumCols;
+    int bottom = (y + windowRows) * sumCols;
+    return this.squareSums[bottom + x + windowCols] - this.squareSums[top + x + windowCols]
+        - this.squareSums[bottom + x] + this.squareSums[top + x];
+  }
+
+  /**
+   * Turns a correlation into a normalized squared difference the same way that OpenCV does.
+   */
+  private static double normalize(double correlation, double windowSquareSum,
+      double templateSquareSum) {
+    double difference = Math.max(windowSquareSum - 2 * correlation + templateSquareSum, 0);
+    double norm = Math.sqrt(windowSquareSum) * Math.sqrt(templateSquareSum);
+    if (Math.abs(difference) < norm) {
+      return difference / norm;
+    }
+    else if (Math.abs(difference) < norm * 1.125) {
+      return difference > 0 ? 1 : -1;
+    }
+    else {
+      return 1;
+    }
+  }
+
+  /**
+   * The spectra of the image's blocks for one template size.
+   */
+  private static class BlockSpectra {
+    private int dftRows;
+    private int dftCols;
+    private int blockWidth;
+    private final List<Mat> spectra = new ArrayList<>();
+  }
+}
@@ -2,6 +2,9 @@ package edu.hawaii.omr;
 
 import java.io.File;
 import java.io.FileWriter;
+import org.jfugue.MusicStringParser;
+import org.jfugue.MusicXmlRenderer;
+import org.jfugue.Pattern;
 
 public class Helpers {
   private Helpers() {
@@ -36,4 +39,18 @@ public class Helpers {
     File folder = new File(folderPath);
     folder.mkdirs();
   }
+
+  /**
+   * Writes the music string and the MusicXML rendered from it to the given folder.
+   */
+  public static void writeMusic(String folder, String musicString) {
+    MusicStringParser parser = new MusicStringParser();
+    MusicXmlRenderer renderer = new MusicXmlRenderer();
+    parser.addParserListener(renderer);
+    parser.parse(new Pattern(musicString));
+
+    String musicXml = renderer.getMusicXMLString();
+    writeToFile(folder + "/musicXml.xml", musicXml);
+    writeToFile(folder + "/musicstring.txt", musicString);
+  }
 }
\ No newline at end of file
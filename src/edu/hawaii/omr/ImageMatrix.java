@@ -1,29 +1,70 @@
 package edu.hawaii.omr;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.highgui.Highgui;
 import org.opencv.imgproc.Imgproc;
 
-public class ImageMatrix extends Mat {
+public class ImageMatrix extends Mat implements AutoCloseable {
+
+  /**
+   * The minimum number of rows in a band processed by a single fork-join task.
+   */
+  private static final int minBandRows = 32;
 
   protected boolean isBinary = false;
   protected boolean hasWhiteForeground = false;
 
+  /**
+   * The row and column of this image's top left corner in the page that it was cut from.
+   */
+  protected int rowOffset = 0;
+  protected int colOffset = 0;
+
+  /**
+   * True if this image's pixels may be shared with another image, in which case they are copied
+   * before this image is written to.
+   */
+  private boolean isShared = false;
+
   public ImageMatrix(Mat matrix) {
     super(matrix.rows(), matrix.cols(), matrix.type());
     matrix.copyTo(this);
   }
 
+  /**
+   * Creates a view of a region of the given image that shares its pixels instead of copying them.
+   * Either image copies its pixels the first time it is written to afterwards, so writes to one
+   * are never seen by the other.
+   * 
+   * @param parent
+   *          The image to view.
+   * @param region
+   *          The region of the parent to view.
+   */
+  public ImageMatrix(ImageMatrix parent, Rect region) {
+    super(parent, region);
+    parent.isShared = true;
+    this.isShared = true;
+    this.rowOffset = parent.rowOffset + region.y;
+    this.colOffset = parent.colOffset + region.x;
+  }
+
   public ImageMatrix(int rows, int cols, int type) {
-    this(Mat.zeros(rows, cols, type));
+    super(rows, cols, type, Scalar.all(0));
   }
 
   public ImageMatrix makeBinary() {
-    Mat temp = new Mat(this.rows(), this.cols(), this.type());
+    Mat temp = MatPool.acquire(this.rows(), this.cols(), this.type());
     Imgproc.threshold(this, temp, 0, 255, Imgproc.THRESH_BINARY | Imgproc.THRESH_OTSU);
+    this.allocateOnWrite();
     temp.copyTo(this);
+    MatPool.recycle(temp);
     this.isBinary = true;
     return this;
   }
@@ -36,9 +77,12 @@ public class ImageMatrix extends Mat {
       this.invert();
     }
     Mat structuringElement = Imgproc.getStructuringElement(elementType, new Size(width, height));
-    Mat dilated = new Mat(this.rows(), this.cols(), this.type());
+    Mat dilated = MatPool.acquire(this.rows(), this.cols(), this.type());
     Imgproc.dilate(this, dilated, structuringElement);
+    this.allocateOnWrite();
     Imgproc.erode(dilated, this, structuringElement);
+    MatPool.recycle(dilated);
+    structuringElement.release();
     return this;
   }
 
@@ -50,48 +94,128 @@ public class ImageMatrix extends Mat {
       this.invert();
     }
     Mat structuringElement = Imgproc.getStructuringElement(elementType, new Size(width, height));
-    Mat eroded = new Mat(this.rows(), this.cols(), this.type());
+    Mat eroded = MatPool.acquire(this.rows(), this.cols(), this.type());
     Imgproc.erode(this, eroded, structuringElement);
+    this.allocateOnWrite();
     Imgproc.dilate(eroded, this, structuringElement);
+    MatPool.recycle(eroded);
+    structuringElement.release();
     return this;
   }
 
   public ImageMatrix invert() {
+    this.copyOnWrite();
     Core.bitwise_not(this, this);
     this.hasWhiteForeground = !this.hasWhiteForeground;
     return this;
   }
 
+  /**
+   * Releases this image's pixels now instead of waiting for the finalizer. Views of this image keep
+   * their pixels until they are closed themselves. The image must not be used afterwards.
+   */
+  @Override
+  public void close() {
+    this.release();
+  }
+
+  public int getRowOffset() {
+    return this.rowOffset;
+  }
+
+  public int getColOffset() {
+    return this.colOffset;
+  }
+
+  /**
+   * Gives this image its own copy of its pixels if they may be shared with another image. Must be
+   * called before anything writes to this image.
+   */
+  protected void copyOnWrite() {
+    if (this.isShared) {
+      Mat copy = this.clone();
+      copy.assignTo(this);
+      copy.release();
+      this.isShared = false;
+    }
+  }
+
+  /**
+   * Gives this image a new buffer for its pixels, without copying them, if they may be shared with
+   * another image. Must be called before something overwrites every pixel of this image.
+   */
+  protected void allocateOnWrite() {
+    if (this.isShared) {
+      Mat buffer = new Mat(this.rows(), this.cols(), this.type());
+      buffer.assignTo(this);
+      buffer.release();
+      this.isShared = false;
+    }
+  }
+
+  /**
+   * Copies the pixels of this 8-bit image into a {@link PixelBuffer} in a single call.
+   * 
+   * @return A buffer containing a copy of this image's pixels.
+   */
+  public PixelBuffer getPixels() {
+    return new PixelBuffer(this);
+  }
+
+  /**
+   * Writes the given buffer back into this image in a single call.
+   * 
+   * @param pixels
+   *          The buffer to write. Must have the same dimensions as this image.
+   * @return This image.
+   */
+  public ImageMatrix putPixels(PixelBuffer pixels) {
+    this.copyOnWrite();
+    pixels.writeTo(this);
+    return this;
+  }
+
+  /**
+   * Encodes this binary image as horizontal and vertical runs of the given foreground color.
+   * 
+   * @param foreground
+   *          The color of the foreground.
+   * @return The run-length encoded image.
+   */
+  public RunLengthImage toRunLengthImage(int foreground) {
+    return new RunLengthImage(this.getPixels(), foreground);
+  }
+
   public ImageMatrix subtractImage(ImageMatrix other) {
     ImageMatrix difference = new ImageMatrix(this.rows(), this.cols(), this.type());
 
-    int numChannels = this.channels();
+    PixelBuffer thisPixels = this.getPixels();
+    PixelBuffer otherPixels = other.getPixels();
+    PixelBuffer differencePixels = new PixelBuffer(this.rows(), this.cols(), this.channels());
+    byte[] thisData = thisPixels.getData();
+    byte[] otherData = otherPixels.getData();
+    byte[] differenceData = differencePixels.getData();
 
-    double[] backgroundValues = new double[numChannels];
-    for (int i = 0; i < numChannels; i++) {
-      backgroundValues[i] = 0;
-    }
+    int numChannels = this.channels();
 
     for (int y = 0, height = this.rows(); y < height; y++) {
       for (int x = 0, width = this.width(); x < width; x++) {
-        double[] thisValues = this.get(y, x);
-        double[] otherValues = other.get(y, x);
-
+        int index = thisPixels.getIndex(x, y);
         boolean isMatch = true;
         for (int i = 0; i < numChannels; i++) {
-          if (Double.compare(thisValues[i], otherValues[i]) != 0) {
+          if (thisData[index + i] != otherData[index + i]) {
             isMatch = false;
             break;
           }
         }
-        if (isMatch) {
-          difference.put(y, x, backgroundValues);
-        }
-        else {
-          difference.put(y, x, thisValues);
+
+        // Background is already 0, only copy non-matching pixels
+        if (!isMatch) {
+          System.arraycopy(thisData, index, differenceData, index, numChannels);
         }
       }
     }
+    difference.putPixels(differencePixels);
     difference.writeImage("diffTest.png");
     return difference;
   }
@@ -101,131 +225,209 @@ public class ImageMatrix extends Mat {
   }
 
   /**
-   * TODO Clean up, this is kind of long...
+   * Subtracts the other image from this image, preserving matched pixels that are connected to
+   * foreground in this image on the far side of the other image's vertical run.
    * 
    * @param other
+   *          The image to subtract, usually a staff line image.
    * @param eightWay
-   * @return
+   *          If diagonal neighbors past the end of a run should preserve a pixel.
+   * @param horizontalBuffer
+   *          The distance to look left and right past the end of a run for foreground that should
+   *          preserve a pixel.
+   * @return The difference of the two images.
    */
   public ImageMatrix subtractImagePreserve(Mat other, boolean eightWay, int horizontalBuffer) {
     ImageMatrix difference = new ImageMatrix(this.rows(), this.cols(), this.type());
 
-    int numChannels = this.channels();
+    PixelBuffer thisPixels = this.getPixels();
+    PixelBuffer otherPixels = new PixelBuffer(other);
+    PixelBuffer differencePixels = new PixelBuffer(this.rows(), this.cols(), this.channels());
+    subtractRowsPreserve(thisPixels, otherPixels, differencePixels, 0, this.rows(), eightWay,
+        horizontalBuffer);
 
-    double[] backgroundValues = new double[numChannels];
-    for (int i = 0; i < numChannels; i++) {
-      backgroundValues[i] = 0;
-    }
+    difference.putPixels(differencePixels);
+    return difference;
+  }
 
-    for (int y = 0, height = this.rows(); y < height; y++) {
-      for (int x = 0, width = this.width(); x < width; x++) {
-        double[] thisValues = this.get(y, x);
-        double[] otherValues = other.get(y, x);
-        boolean preserve = true;
+  public ImageMatrix subtractImagePreserveParallel(Mat other, boolean eightWay) {
+    return this.subtractImagePreserveParallel(other, eightWay, 0);
+  }
+
+  public ImageMatrix subtractImagePreserveParallel(Mat other, boolean eightWay,
+      int horizontalBuffer) {
+    return this.subtractImagePreserveParallel(other, eightWay, horizontalBuffer,
+        ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Parallel version of {@link #subtractImagePreserve(Mat, boolean, int)} that produces identical
+   * output. The image is split into bands of rows which are processed on the given pool. Every band
+   * reads from the same full-image buffers, so the vertical walks past the edges of a band see the
+   * neighboring rows without any extra copying, and each band only writes its own rows.
+   * 
+   * @param other
+   *          The image to subtract, usually a staff line image.
+   * @param eightWay
+   *          If diagonal neighbors past the end of a run should preserve a pixel.
+   * @param horizontalBuffer
+   *          The distance to look left and right past the end of a run for foreground that should
+   *          preserve a pixel.
+   * @param pool
+   *          The pool to run the bands on.
+   * @return The difference of the two images.
+   */
+  public ImageMatrix subtractImagePreserveParallel(Mat other, boolean eightWay,
+      int horizontalBuffer, ForkJoinPool pool) {
+    ImageMatrix difference = new ImageMatrix(this.rows(), this.cols(), this.type());
+
+    PixelBuffer thisPixels = this.getPixels();
+    PixelBuffer otherPixels = new PixelBuffer(other);
+    PixelBuffer differencePixels = new PixelBuffer(this.rows(), this.cols(), this.channels());
+    pool.invoke(new SubtractPreserveTask(thisPixels, otherPixels, differencePixels, 0,
+        this.rows(), eightWay, horizontalBuffer));
+
+    difference.putPixels(differencePixels);
+    return difference;
+  }
+
+  /**
+   * Performs {@link #subtractImagePreserve(Mat, boolean, int)} on the rows [startRow, endRow),
+   * writing the results to the difference buffer. The vertical walks may read rows outside of the
+   * range.
+   */
+  static void subtractRowsPreserve(PixelBuffer thisPixels, PixelBuffer otherPixels,
+      PixelBuffer difference, int startRow, int endRow, boolean eightWay, int horizontalBuffer) {
+    byte[] thisData = thisPixels.getData();
+    byte[] otherData = otherPixels.getData();
+    byte[] differenceData = difference.getData();
+    int numChannels = thisPixels.channels();
+
+    for (int y = startRow; y < endRow; y++) {
+      for (int x = 0, width = thisPixels.cols(); x < width; x++) {
+        int index = thisPixels.getIndex(x, y);
         boolean isMatch = true;
         for (int i = 0; i < numChannels; i++) {
-          if (Double.compare(thisValues[i], otherValues[i]) != 0) {
+          if (thisData[index + i] != otherData[index + i]) {
             isMatch = false;
             break;
           }
         }
-        if (isMatch) {
+        if (!isMatch || isPreserved(thisPixels, otherPixels, x, y, eightWay, horizontalBuffer)) {
+          System.arraycopy(thisData, index, differenceData, index, numChannels);
+        }
+      }
+    }
+  }
 
-          // Check the next pixel below the match
-          int yOffset = 0;
-          preserve = false;
-          while (y + yOffset < other.rows() - 1 && other.get(y + yOffset, x)[0] == 255) {
-            yOffset++;
-          }
-          if (this.get(y + yOffset, x)[0] == 255) {
-            preserve = true;
-          }
-          else if (yOffset > 0) {
-
-            if (eightWay) {
-              // Check the pixel below and to the left
-              if (x > 0 && this.get(y + yOffset, x - 1)[0] == 255) {
-                preserve = true;
-              }
-
-              // Check the pixel below and to the right
-              else if (x < width - 1 && this.get(y + yOffset, x + 1)[0] == 255) {
-                preserve = true;
-              }
-            }
-
-            if (horizontalBuffer > 0) {
-              boolean foundLeft = false;
-              boolean foundRight = false;
-              for (int xOffset = eightWay ? 2 : 1; xOffset < horizontalBuffer; xOffset++) {
-                if (!foundLeft && x - xOffset > 0 && this.get(y + yOffset, x - xOffset)[0] == 255) {
-                  foundLeft = true;
-                }
-                if (!foundRight && x + xOffset < width
-                    && this.get(y + yOffset, x + xOffset)[0] == 255) {
-                  foundRight = true;
-                }
-
-                if (foundLeft && foundRight) {
-                  preserve = true;
-                  break;
-                }
-              }
-            }
-          }
+  /**
+   * Checks if a pixel that matched the other image should be preserved by walking through the
+   * other image's run below it, and then above it.
+   */
+  private static boolean isPreserved(PixelBuffer thisPixels, PixelBuffer otherPixels, int x,
+      int y, boolean eightWay, int horizontalBuffer) {
+    int height = otherPixels.rows();
 
-          // If the pixels below do not save this pixel, check above
-          if (!preserve) {
-            yOffset = 0;
-            while (y + yOffset > 0 && other.get(y + yOffset, x)[0] == 255) {
-              yOffset--;
-            }
-            if (this.get(y + yOffset, x)[0] == 255) {
-              preserve = true;
-            }
-            else if (yOffset < 0) {
-
-              if (eightWay) {
-                // Check above and to the left
-                if (x > 0 && this.get(y + yOffset, x - 1)[0] == 255) {
-                  preserve = true;
-                }
-
-                // Check above and to the right
-                else if (x < this.cols() - 1 && this.get(y + yOffset, x + 1)[0] == 255) {
-                  preserve = true;
-                }
-              }
-              if (horizontalBuffer > 0) {
-                boolean foundLeft = false;
-                boolean foundRight = false;
-                for (int xOffset = eightWay ? 2 : 1; xOffset < horizontalBuffer; xOffset++) {
-                  if (!foundLeft && x - xOffset > 0 && this.get(y + yOffset, x - xOffset)[0] == 255) {
-                    foundLeft = true;
-                  }
-                  if (!foundRight && x + xOffset < width
-                      && this.get(y + yOffset, x + xOffset)[0] == 255) {
-                    foundRight = true;
-                  }
-
-                  if (foundLeft && foundRight) {
-                    preserve = true;
-                    break;
-                  }
-                }
-              }
-            }
-          }
+    // Check the next pixel below the match
+    int yOffset = 0;
+    while (y + yOffset < height - 1 && otherPixels.get(x, y + yOffset) == 255) {
+      yOffset++;
+    }
+    if (isPreservedBy(thisPixels, x, y + yOffset, yOffset != 0, eightWay, horizontalBuffer)) {
+      return true;
+    }
+
+    // If the pixels below do not save this pixel, check above
+    yOffset = 0;
+    while (y + yOffset > 0 && otherPixels.get(x, y + yOffset) == 255) {
+      yOffset--;
+    }
+    return isPreservedBy(thisPixels, x, y + yOffset, yOffset != 0, eightWay, horizontalBuffer);
+  }
+
+  /**
+   * Checks if the pixel at the end of a vertical walk (and optionally its neighbors) is foreground.
+   */
+  private static boolean isPreservedBy(PixelBuffer thisPixels, int x, int endY, boolean moved,
+      boolean eightWay, int horizontalBuffer) {
+    int width = thisPixels.cols();
+    if (thisPixels.get(x, endY) == 255) {
+      return true;
+    }
+    if (!moved) {
+      return false;
+    }
+
+    // Check the pixels diagonal to the end of the walk
+    if (eightWay) {
+      if (x > 0 && thisPixels.get(x - 1, endY) == 255) {
+        return true;
+      }
+      else if (x < width - 1 && thisPixels.get(x + 1, endY) == 255) {
+        return true;
+      }
+    }
+
+    if (horizontalBuffer > 0) {
+      boolean foundLeft = false;
+      boolean foundRight = false;
+      for (int xOffset = eightWay ? 2 : 1; xOffset < horizontalBuffer; xOffset++) {
+        if (!foundLeft && x - xOffset > 0 && thisPixels.get(x - xOffset, endY) == 255) {
+          foundLeft = true;
         }
-        if (!preserve) {
-          difference.put(y, x, backgroundValues);
+        if (!foundRight && x + xOffset < width && thisPixels.get(x + xOffset, endY) == 255) {
+          foundRight = true;
         }
-        else {
-          difference.put(y, x, thisValues);
+
+        if (foundLeft && foundRight) {
+          return true;
         }
       }
     }
-    return difference;
+    return false;
+  }
+
+  /**
+   * Splits a range of rows in half until it is small enough and then subtracts the rows in the
+   * range.
+   */
+  private static class SubtractPreserveTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final PixelBuffer thisPixels;
+    private final PixelBuffer otherPixels;
+    private final PixelBuffer difference;
+    private final int startRow;
+    private final int endRow;
+    private final boolean eightWay;
+    private final int horizontalBuffer;
+
+    public SubtractPreserveTask(PixelBuffer thisPixels, PixelBuffer otherPixels,
+        PixelBuffer difference, int startRow, int endRow, boolean eightWay, int horizontalBuffer) {
+      this.thisPixels = thisPixels;
+      this.otherPixels = otherPixels;
+      this.difference = difference;
+      this.startRow = startRow;
+      this.endRow = endRow;
+      this.eightWay = eightWay;
+      this.horizontalBuffer = horizontalBuffer;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.endRow - this.startRow <= minBandRows) {
+        subtractRowsPreserve(this.thisPixels, this.otherPixels, this.difference, this.startRow,
+            this.endRow, this.eightWay, this.horizontalBuffer);
+      }
+      else {
+        int middle = (this.startRow + this.endRow) >>> 1;
+        invokeAll(new SubtractPreserveTask(this.thisPixels, this.otherPixels, this.difference,
+            this.startRow, middle, this.eightWay, this.horizontalBuffer),
+            new SubtractPreserveTask(this.thisPixels, this.otherPixels, this.difference, middle,
+                this.endRow, this.eightWay, this.horizontalBuffer));
+      }
+    }
   }
 
   public void writeImage(String filePath) {
@@ -235,6 +437,7 @@ public class ImageMatrix extends Mat {
   public static ImageMatrix readImage(String filePath, int flags, boolean whiteForeground) {
     Mat matrix = Highgui.imread(filePath, flags);
     ImageMatrix image = new ImageMatrix(matrix);
+    matrix.release();
     image.hasWhiteForeground = whiteForeground;
     return image;
   }
@@ -0,0 +1,129 @@
+package edu.hawaii.omr;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import org.opencv.core.Mat;
+
+/**
+ * A pool of scratch matrices for the page-sized temporaries of the clean up stages, keyed by size
+ * and type. The pages of a run are usually scanned at the same size, so they reuse the same native
+ * buffers instead of allocating new ones and leaving the old ones for the finalizers to free. The
+ * pool holds a limited number of bytes and releases any matrix returned beyond that, and should be
+ * cleared once every page of a run is done, not after each page. Safe to use from multiple threads.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class MatPool {
+
+  private static final long maxPooledBytes = 64L * 1024 * 1024;
+
+  private static final Map<MatKey, ArrayDeque<Mat>> pool = new HashMap<>();
+  private static long pooledBytes = 0;
+
+  private MatPool() {
+    // Private constructor
+  }
+
+  /**
+   * Gets a matrix of the given size and type, reusing a pooled one if there is one.
+   * 
+   * @param rows
+   *          The number of rows.
+   * @param cols
+   *          The number of columns.
+   * @param type
+   *          The type of the matrix.
+   * @return The matrix, whose contents are undefined. Should be given back with
+   *         {@link #recycle(Mat)} once it is no longer needed.
+   */
+  public static Mat acquire(int rows, int cols, int type) {
+    synchronized (pool) {
+      MatKey key = new MatKey(rows, cols, type);
+      ArrayDeque<Mat> mats = pool.get(key);
+      if (mats != null) {
+        Mat mat = mats.poll();
+        if (mats.isEmpty()) {
+          pool.remove(key);
+        }
+        pooledBytes -= getSize(mat);
+        return mat;
+      }
+    }
+    return new Mat(rows, cols, type);
+  }
+
+  /**
+   * Gives a matrix back to the pool, or releases it if the pool is full. The matrix must not be
+   * used afterwards.
+   * 
+   * @param mat
+   *          The matrix to give back.
+   */
+  public static void recycle(Mat mat) {
+    long size = getSize(mat);
+    synchronized (pool) {
+      if (size > 0 && pooledBytes + size <= maxPooledBytes) {
+        MatKey key = new MatKey(mat.rows(), mat.cols(), mat.type());
+        ArrayDeque<Mat> mats = pool.get(key);
+        if (mats == null) {
+          mats = new ArrayDeque<>();
+          pool.put(key, mats);
+        }
+        mats.offer(mat);
+        pooledBytes += size;
+        return;
+      }
+    }
+    mat.release();
+  }
+
+  /**
+   * Releases every pooled matrix.
+   */
+  public static void clear() {
+    synchronized (pool) {
+      for (ArrayDeque<Mat> mats : pool.values()) {
+        for (Mat mat : mats) {
+          mat.release();
+        }
+      }
+      pool.clear();
+      pooledBytes = 0;
+    }
+  }
+
+  private static long getSize(Mat mat) {
+    return mat.total() * mat.elemSize();
+  }
+
+  private static class MatKey {
+    private final int rows;
+    private final int cols;
+    private final int type;
+
+    public MatKey(int rows, int cols, int type) {
+      this.rows = rows;
+      this.cols = cols;
+      this.type = type;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = this.rows;
+      hash = 31 * hash + this.cols;
+      hash = 31 * hash + this.type;
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof MatKey)) {
+        return false;
+      }
+      MatKey other = (MatKey) obj;
+      return this.rows == other.rows && this.cols == other.cols && this.type == other.type;
+    }
+  }
+}
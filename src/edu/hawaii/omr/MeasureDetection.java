@@ -60,6 +60,9 @@ public class MeasureDetection {
     }
     String filename = "OpenCVMeasureLines.png";
     Highgui.imwrite(filename, verticalLineOutput);
+    edges.release();
+    verticalLineOutput.release();
+    lines.release();
   }
 
   public List<MeasureLine> getRange(int topY, int bottomY) {
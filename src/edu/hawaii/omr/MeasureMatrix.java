@@ -2,29 +2,70 @@ package edu.hawaii.omr;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import org.opencv.core.Core;
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
+import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.imgproc.Imgproc;
 
 public class MeasureMatrix extends ImageMatrix {
 
+  private static final NoteCandidate.ScoreComparator scoreComparator =
+      new NoteCandidate.ScoreComparator();
+
+  /**
+   * The smallest line distance at which the note heads are matched in the frequency domain. The
+   * templates are about a line distance high, and below this (scans under about 600 dpi) matching
+   * them directly is cheaper.
+   */
+  private static final int minFrequencyDomainLineDistance = 32;
+
   private final Staff staff;
   private final StaffInfo info;
-  private final int offset;
   private List<NoteHead> noteCenters = null;
 
-  public MeasureMatrix(Mat matrix, Staff staff, StaffInfo info, int offset) {
-    super(matrix);
+  /**
+   * Creates a measure image that views a region of its staff's image instead of copying it.
+   * 
+   * @param staffImage
+   *          The image of the staff containing the measure.
+   * @param region
+   *          The region of the staff's image to view.
+   * @param staff
+   *          The staff containing the measure.
+   * @param info
+   *          The info about the staffs in the sheet.
+   */
+  public MeasureMatrix(ImageMatrix staffImage, Rect region, Staff staff, StaffInfo info) {
+    super(staffImage, region);
     this.staff = staff;
     this.info = info;
-    this.offset = offset;
   }
 
+  /**
+   * Finds the note heads in the measure, matching the templates in the frequency domain if they are
+   * large enough for it to be cheaper.
+   */
   public void findNotes() {
+    this.findNotes(this.info.getModeLineDistance() >= minFrequencyDomainLineDistance);
+  }
+
+  /**
+   * Finds the note heads in the measure.
+   * 
+   * @param useFrequencyDomain
+   *          If the templates should be correlated with the measure in the frequency domain, which
+   *          is cheaper than direct matching for large templates (high resolution scans).
+   */
+  public void findNotes(boolean useFrequencyDomain) {
 
     int height = this.info.getModeLineDistance();
 
@@ -32,73 +73,267 @@ public class MeasureMatrix extends ImageMatrix {
     HalfNote halfNote = new HalfNote(height);
     WholeNote wholeNote = new WholeNote(height);
 
-    Mat wholeTemplate = wholeNote.makeNoteHeadTemplate();
-    Mat halfTemplate = halfNote.makeNoteHeadTemplate();
-    Mat quarterTemplate = quarterNote.makeNoteHeadTemplate();
+    Mat[] templates =
+        { wholeNote.getNoteHeadTemplate(), halfNote.getNoteHeadTemplate(),
+            quarterNote.getNoteHeadTemplate() };
+    double[] thresholds = { wholeNote.threshold, halfNote.threshold, quarterNote.threshold };
+
+    Mat[] results = new Mat[templates.length];
+    int[] midpoints = new int[templates.length];
+    List<NoteCandidate> candidates;
+    FftTemplateMatcher matcher = null;
+    try {
+      matcher = useFrequencyDomain ? new FftTemplateMatcher(this) : null;
+      for (int i = 0; i < templates.length; i++) {
+        results[i] = new Mat();
+        if (matcher != null) {
+          matcher.matchTemplate(templates[i], results[i]);
+        }
+        else {
+          Imgproc.matchTemplate(this, templates[i], results[i], Imgproc.TM_SQDIFF_NORMED);
+        }
 
-    int result_cols = this.cols() - wholeTemplate.cols() + 1;
-    int result_rows = this.rows() - wholeTemplate.rows() + 1;
-    Mat wholeResult = new Mat(result_cols, result_rows, CvType.CV_32F);
-    Mat halfResult = new Mat(result_cols, result_rows, CvType.CV_32F);
-    Mat quarterResult = new Mat(result_cols, result_rows, CvType.CV_32F);
+        // Detected points are at the topleft of the template, need to move to center of the
+        // square
+        midpoints[i] = (int) (templates[i].cols() / 2.0);
+      }
+      // Core.normalize(result, result, 0, 1, Core.NORM_MINMAX, -1, new Mat()); //use if need to
+      // normalize
 
-    this.noteCenters = new ArrayList<>();
+      candidates = findCandidates(results, thresholds, midpoints);
+    }
+    finally {
+      // Every measure has its own size, so the results are released rather than pooled
+      for (Mat result : results) {
+        if (result != null) {
+          result.release();
+        }
+      }
+      if (matcher != null) {
+        matcher.close();
+      }
+    }
 
-    Imgproc.matchTemplate(this, wholeTemplate, wholeResult, Imgproc.TM_SQDIFF_NORMED);
-    Imgproc.matchTemplate(this, halfTemplate, halfResult, Imgproc.TM_SQDIFF_NORMED);
-    Imgproc.matchTemplate(this, quarterTemplate, quarterResult, Imgproc.TM_SQDIFF_NORMED);
-    // Core.normalize(result, result, 0, 1, Core.NORM_MINMAX, -1, new Mat()); //use if need to
-    // normalize
+    // Note heads can be no closer than the line distance
+    List<NoteHead> noteCenters = new ArrayList<>();
+    for (NoteCandidate candidate : suppressCandidates(candidates, height)) {
+      noteCenters.add(makeNoteHead(candidate));
+    }
 
-    NoteHead.setNoteWidth((int) height);
+    Collections.sort(noteCenters);
+    this.noteCenters = noteCenters;
+  }
 
-    for (int y = 0; y < result_rows; y++) {
-      for (int x = 0; x < result_cols; x++) {
-        if (wholeResult.get(y, x)[0] < wholeNote.threshold) {
+  /**
+   * Finds the note heads in each of the measures on the given thread pool. Measures only read their
+   * own pixels and the shared note head templates, so they can all be searched at once.
+   * 
+   * @param measures
+   *          The measures to search.
+   * @param threadPool
+   *          The pool to search the measures on.
+   * @return The note heads of each measure, in the same order as the measures.
+   * @throws IllegalStateException
+   *           If the notes of a measure could not be found.
+   */
+  public static List<List<NoteHead>> findNotes(List<MeasureMatrix> measures,
+      ExecutorService threadPool) {
+    List<FindNotesCallable> callables = new ArrayList<>(measures.size());
+    for (MeasureMatrix measure : measures) {
+      callables.add(new FindNotesCallable(measure));
+    }
 
-          // Detected point at topleft of the template, need to move to center of the square
-          int midpoint = (int) (wholeTemplate.cols() / 2.0);
-          addNoteToList(new WholeNote(x + midpoint, y + midpoint));
-        }
+    List<List<NoteHead>> noteHeads = new ArrayList<>(measures.size());
+    try {
+      for (Future<List<NoteHead>> future : threadPool.invokeAll(callables)) {
+        noteHeads.add(future.get());
       }
     }
-    for (int y = 0; y < result_rows; y++) {
-      for (int x = 0; x < result_cols; x++) {
-        if (halfResult.get(y, x)[0] < halfNote.threshold) {
+    catch (InterruptedException e) {
+      // Find the rest of the notes on this thread so that no measure is left out, and leave the
+      // interrupt for the caller
+      Thread.currentThread().interrupt();
+      for (int i = noteHeads.size(); i < measures.size(); i++) {
+        noteHeads.add(measures.get(i).getNoteHeads());
+      }
+    }
+    catch (ExecutionException e) {
+      throw new IllegalStateException("Could not find the notes of measure " + noteHeads.size(),
+          e.getCause());
+    }
+    return noteHeads;
+  }
 
-          // Detected point at topleft of the template, need to move to center of the square
-          int midpoint = (int) (halfTemplate.cols() / 2.0);
-          addNoteToList(new HalfNote(x + midpoint, y + midpoint));
-        }
+  /**
+   * Appends the pitches of every measure to the builder in order, finding the notes of the measures
+   * in parallel first.
+   * 
+   * @param measures
+   *          The measures to get the pitches of.
+   * @param threadPool
+   *          The pool to search the measures on.
+   * @param builder
+   *          The builder to append the pitches to.
+   */
+  public static void getPitches(List<MeasureMatrix> measures, ExecutorService threadPool,
+      StringBuilder builder) {
+    findNotes(measures, threadPool);
+    for (MeasureMatrix measure : measures) {
+      measure.getPitches(builder);
+    }
+  }
+
+  public List<NoteHead> getNoteHeads() {
+    if (this.noteCenters == null) {
+      this.findNotes();
+    }
+    return Collections.unmodifiableList(this.noteCenters);
+  }
+
+  /**
+   * Finds the points in each glyph's template match scores that are below the glyph's threshold
+   * and are a local minimum of its scores. All of the score maps are read in bulk and scanned
+   * together in a single pass.
+   * 
+   * @param scores
+   *          The CV_32F template match scores of each glyph.
+   * @param thresholds
+   *          The highest score that is still a match for each glyph.
+   * @param midpoints
+   *          The offset from the topleft of each glyph's template to its center.
+   * @return The candidates ordered by glyph, then by row and then by column.
+   */
+  static List<NoteCandidate> findCandidates(Mat[] scores, double[] thresholds, int[] midpoints) {
+    int numGlyphs = scores.length;
+    int[] rows = new int[numGlyphs];
+    int[] cols = new int[numGlyphs];
+    float[][] values = new float[numGlyphs][];
+    List<List<NoteCandidate>> found = new ArrayList<>(numGlyphs);
+    int maxRows = 0;
+    int maxCols = 0;
+    for (int i = 0; i < numGlyphs; i++) {
+      rows[i] = Math.max(0, scores[i].rows());
+      cols[i] = Math.max(0, scores[i].cols());
+      values[i] = new float[rows[i] * cols[i]];
+      if (values[i].length > 0) {
+        scores[i].get(0, 0, values[i]);
       }
+      found.add(new ArrayList<NoteCandidate>());
+      maxRows = Math.max(maxRows, rows[i]);
+      maxCols = Math.max(maxCols, cols[i]);
     }
-    for (int y = 0; y < result_rows; y++) {
-      for (int x = 0; x < result_cols; x++) {
-        if (quarterResult.get(y, x)[0] < quarterNote.threshold) {
 
-          // Detected point at topleft of the template, need to move to center of the square
-          int midpoint = (int) (quarterTemplate.cols() / 2.0);
-          addNoteToList(new QuarterNote(x + midpoint, y + midpoint));
+    for (int y = 0; y < maxRows; y++) {
+      for (int x = 0; x < maxCols; x++) {
+        for (int i = 0; i < numGlyphs; i++) {
+          if (y < rows[i] && x < cols[i]) {
+            float value = values[i][y * cols[i] + x];
+            if (value < thresholds[i] && isLocalMinimum(values[i], rows[i], cols[i], x, y)) {
+              found.get(i).add(
+                  new NoteCandidate(i, x + midpoints[i], y + midpoints[i], value));
+            }
+          }
         }
       }
     }
 
-    Collections.sort(this.noteCenters);
+    List<NoteCandidate> candidates = new ArrayList<>();
+    for (List<NoteCandidate> glyphCandidates : found) {
+      candidates.addAll(glyphCandidates);
+    }
+    return candidates;
   }
 
-  private void addNoteToList(NoteHead input) {
+  /**
+   * Checks if the score at the given point is no greater than any of its neighbors. Ties with
+   * neighbors that come earlier in the scan are not counted so that a flat region of equal scores
+   * only has one minimum.
+   */
+  private static boolean isLocalMinimum(float[] values, int rows, int cols, int x, int y) {
+    float value = values[y * cols + x];
+    int startX = Math.max(0, x - 1);
+    int endX = Math.min(cols - 1, x + 1);
+    int endY = Math.min(rows - 1, y + 1);
+    for (int neighborY = Math.max(0, y - 1); neighborY <= endY; neighborY++) {
+      for (int neighborX = startX; neighborX <= endX; neighborX++) {
+        float neighbor = values[neighborY * cols + neighborX];
+        boolean earlier = neighborY < y || (neighborY == y && neighborX < x);
+        if (neighbor < value || (earlier && neighbor == value)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
 
-    boolean isAdjacent = false;
-    for (int i = 0; i < this.noteCenters.size(); i++) {
-      if (input.adjacentTo(this.noteCenters.get(i))) {
-        isAdjacent = true;
+  /**
+   * Keeps the best scoring candidate in each neighborhood, dropping any candidate that is closer
+   * than the note width to a better one. The candidates are visited from best to worst score and
+   * the accepted ones are hashed into a grid of cells one note width wide, so each candidate only
+   * needs to be compared against the accepted candidates in the 3x3 cells around it.
+   * 
+   * @param candidates
+   *          The candidates to filter.
+   * @param noteWidth
+   *          The closest that two note heads can be.
+   * @return The accepted candidates, from best to worst score.
+   */
+  static List<NoteCandidate> suppressCandidates(List<NoteCandidate> candidates, int noteWidth) {
+    int cellSize = Math.max(1, noteWidth);
+    List<NoteCandidate> sorted = new ArrayList<>(candidates);
+    Collections.sort(sorted, scoreComparator);
+
+    List<NoteCandidate> accepted = new ArrayList<>();
+    Map<Long, List<NoteCandidate>> cells = new HashMap<>();
+    for (NoteCandidate candidate : sorted) {
+      int cellX = Math.floorDiv(candidate.getX(), cellSize);
+      int cellY = Math.floorDiv(candidate.getY(), cellSize);
+      if (!hasNeighbor(cells, candidate, cellX, cellY, noteWidth)) {
+        Long key = getCellKey(cellX, cellY);
+        List<NoteCandidate> cell = cells.get(key);
+        if (cell == null) {
+          cell = new ArrayList<>();
+          cells.put(key, cell);
+        }
+        cell.add(candidate);
+        accepted.add(candidate);
       }
     }
+    return accepted;
+  }
 
-    if (isAdjacent == false) {
-      this.noteCenters.add(input);
+  private static boolean hasNeighbor(Map<Long, List<NoteCandidate>> cells,
+      NoteCandidate candidate, int cellX, int cellY, int noteWidth) {
+    for (int y = cellY - 1; y <= cellY + 1; y++) {
+      for (int x = cellX - 1; x <= cellX + 1; x++) {
+        List<NoteCandidate> cell = cells.get(getCellKey(x, y));
+        if (cell != null) {
+          for (NoteCandidate other : cell) {
+            int xDistance = candidate.getX() - other.getX();
+            int yDistance = candidate.getY() - other.getY();
+            if (Math.sqrt(xDistance * xDistance + yDistance * yDistance) < noteWidth) {
+              return true;
+            }
+          }
+        }
+      }
     }
+    return false;
+  }
+
+  private static long getCellKey(int cellX, int cellY) {
+    return ((long) cellX << 32) | (cellY & 0xFFFFFFFFL);
+  }
 
+  private static NoteHead makeNoteHead(NoteCandidate candidate) {
+    switch (candidate.getGlyph()) {
+      case 0:
+        return new WholeNote(candidate.getX(), candidate.getY());
+      case 1:
+        return new HalfNote(candidate.getX(), candidate.getY());
+      default:
+        return new QuarterNote(candidate.getX(), candidate.getY());
+    }
   }
 
   public void getPitches(StringBuilder builder) {
@@ -106,10 +341,20 @@ public class MeasureMatrix extends ImageMatrix {
       this.findNotes();
     }
 
-    for (NoteHead center : this.noteCenters) {
+    // Staff images span every column of the page, so the measure's column in the page is also its
+    // column in the staff
+    PitchResolver resolver = this.staff.getPitchResolver(this.info);
+    int[] pitches = new int[this.noteCenters.size()];
+    for (int i = 0; i < pitches.length; i++) {
+      NoteHead center = this.noteCenters.get(i);
+      pitches[i] =
+          resolver.getPitchCode(center.getXCoordinate() - this.colOffset,
+              center.getYCoordinate());
+    }
+
+    for (int pitch : pitches) {
       builder.append(' ');
-      builder.append(this.staff.getPitchTreble(center.getXCoordinate() - this.offset,
-          center.getYCoordinate(), this.info));
+      builder.append(PitchResolver.getPitchName(pitch));
     }
     builder.append(" |");
   }
@@ -123,7 +368,7 @@ public class MeasureMatrix extends ImageMatrix {
     Mat image_rgb = new Mat();
     Imgproc.cvtColor(this, image_rgb, Imgproc.COLOR_GRAY2RGB);
     ImageMatrix image = new ImageMatrix(image_rgb);
-    image_rgb = null;
+    image_rgb.release();
 
     Point matchLoc;
     Point matchLocBox;
@@ -157,4 +402,16 @@ public class MeasureMatrix extends ImageMatrix {
     return image;
   }
 
+  private static class FindNotesCallable implements Callable<List<NoteHead>> {
+    private MeasureMatrix measure;
+
+    public FindNotesCallable(MeasureMatrix measure) {
+      this.measure = measure;
+    }
+
+    @Override
+    public List<NoteHead> call() throws Exception {
+      return this.measure.getNoteHeads();
+    }
+  }
 }
@@ -0,0 +1,64 @@
+package edu.hawaii.omr;
+
+import java.util.Comparator;
+
+/**
+ * A possible note head found by template matching: the glyph that matched, the center of the match
+ * and its score, where lower scores are better matches.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class NoteCandidate {
+
+  private final int glyph;
+  private final int x;
+  private final int y;
+  private final float score;
+
+  /**
+   * Creates a new candidate.
+   * 
+   * @param glyph
+   *          The index of the glyph that matched.
+   * @param x
+   *          The column of the center of the match.
+   * @param y
+   *          The row of the center of the match.
+   * @param score
+   *          The match score.
+   */
+  public NoteCandidate(int glyph, int x, int y, float score) {
+    this.glyph = glyph;
+    this.x = x;
+    this.y = y;
+    this.score = score;
+  }
+
+  public int getGlyph() {
+    return this.glyph;
+  }
+
+  public int getX() {
+    return this.x;
+  }
+
+  public int getY() {
+    return this.y;
+  }
+
+  public float getScore() {
+    return this.score;
+  }
+
+  /**
+   * Orders candidates from the best (lowest) score to the worst.
+   */
+  public static class ScoreComparator implements Comparator<NoteCandidate> {
+
+    @Override
+    public int compare(NoteCandidate o1, NoteCandidate o2) {
+      return Float.compare(o1.score, o2.score);
+    }
+  }
+}
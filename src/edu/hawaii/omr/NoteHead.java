@@ -6,37 +6,31 @@ public abstract class NoteHead implements Comparable<NoteHead> {
 
   protected int yCoordinate;
   protected int xCoordinate;
-  private static int noteWidth;
 
   protected double angleRotation;
 
+  /**
+   * The distance between staff lines that the template is made for.
+   */
+  protected double height;
+
   protected String type;
 
   public Mat template = null;
 
-  public boolean adjacentTo(NoteHead fromNote) {
-    boolean ret;
-
-    // distance formula used to find if note is adjacent and is a double counted note.
-    int width = (int) (noteWidth);
-    double xDistance = Math.pow(xCoordinate - fromNote.getXCoordinate(), 2);
-    double yDistance = Math.pow(yCoordinate - fromNote.getYCoordinate(), 2);
-    double totalDistance = Math.sqrt(xDistance + yDistance);
-    if (totalDistance < width) {
-      ret = true;
-    }
-    else {
-      ret = false;
-    }
-    return ret;
-  }
+  public abstract Mat makeNoteHeadTemplate();
 
-  public static void setNoteWidth(int noteWidth) {
-    NoteHead.noteWidth = noteWidth;
+  /**
+   * Gets the template for this kind of note head, making it only if one has not already been made
+   * for the same line distance and angle. The template is shared and must not be modified.
+   * 
+   * @return The note head template.
+   */
+  public Mat getNoteHeadTemplate() {
+    this.template = NoteHeadTemplates.getTemplate(this);
+    return this.template;
   }
 
-  public abstract Mat makeNoteHeadTemplate();
-
   public int getYCoordinate() {
     return yCoordinate;
   }
@@ -54,4 +48,12 @@ public abstract class NoteHead implements Comparable<NoteHead> {
   public String getType() {
     return type;
   }
+
+  public double getAngleRotation() {
+    return angleRotation;
+  }
+
+  public double getHeight() {
+    return height;
+  }
 }
@@ -0,0 +1,76 @@
+package edu.hawaii.omr;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.opencv.core.Mat;
+
+/**
+ * A cache of note head templates shared by every measure, staff and sheet. Each template is made
+ * once for its kind of note head, line distance and angle and reused afterwards. Safe to use from
+ * multiple threads.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class NoteHeadTemplates {
+
+  private static final ConcurrentMap<TemplateKey, Mat> templates = new ConcurrentHashMap<>();
+
+  /**
+   * Gets the template for the given note head, making it if it has not been made yet.
+   * 
+   * @param noteHead
+   *          A note head created with the line distance to make the template for.
+   * @return The shared template, which must not be modified.
+   */
+  public static Mat getTemplate(NoteHead noteHead) {
+    TemplateKey key =
+        new TemplateKey(noteHead.getType(), noteHead.getHeight(), noteHead.getAngleRotation());
+    Mat template = templates.get(key);
+    if (template == null) {
+      Mat made = noteHead.makeNoteHeadTemplate();
+      template = templates.putIfAbsent(key, made);
+      if (template == null) {
+        template = made;
+      }
+    }
+    return template;
+  }
+
+  /**
+   * Removes every template from the cache.
+   */
+  public static void clear() {
+    templates.clear();
+  }
+
+  private static class TemplateKey {
+    private final String type;
+    private final double height;
+    private final double angle;
+
+    public TemplateKey(String type, double height, double angle) {
+      this.type = type;
+      this.height = height;
+      this.angle = angle;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = this.type.hashCode();
+      hash = 31 * hash + Double.valueOf(this.height).hashCode();
+      hash = 31 * hash + Double.valueOf(this.angle).hashCode();
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof TemplateKey)) {
+        return false;
+      }
+      TemplateKey other = (TemplateKey) obj;
+      return this.type.equals(other.type) && Double.compare(this.height, other.height) == 0
+          && Double.compare(this.angle, other.angle) == 0;
+    }
+  }
+}
@@ -0,0 +1,218 @@
+package edu.hawaii.omr;
+
+/**
+ * Maps note head positions to treble clef pitches for a single staff. The rows at which each staff
+ * position (line, space or ledger line) ends are precomputed for every column that the staff
+ * spans, so resolving a pitch is a binary search over a handful of integers. Pitches are returned
+ * as compact codes, the number of staff positions below the top line (F5), and only turned into
+ * names when they are written out.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class PitchResolver {
+
+  /**
+   * The code returned for positions beyond the highest or lowest ledger line that is recognized.
+   */
+  public static final int noPitch = Integer.MIN_VALUE;
+
+  private static final int maxLedgerLines = 5;
+  private static final int highestCode = -2 * maxLedgerLines - 1;
+  private static final String[] pitchNames = { "C7", "B6", "A6", "G6", "F6", "E6", "D6", "C6",
+      "B5", "A5", "G5", "F5", "E5", "D5", "C5", "B4", "A4", "G4", "F4", "E4", "D4", "C4", "B3",
+      "A3", "G3", "F3", "E3", "D3", "C3", "B2", "A2" };
+
+  /**
+   * The number of boundaries kept per column above the staff, inside the staff and below the staff.
+   */
+  private static final int numLedgerBounds = 2 * maxLedgerLines + 3;
+  private static final int numStaffBounds = 8;
+
+  private final StaffLine[] lines;
+  private final int topBound;
+  private final int bottomBound;
+  private final double margin;
+  private final double lineCenterDistance;
+
+  private final int startX;
+  private final int endX;
+  private final int[] aboveBounds;
+  private final int[] staffBounds;
+  private final int[] belowBounds;
+
+  /**
+   * Creates a new resolver covering every column from the staff's left bound to its right bound.
+   * 
+   * @param staff
+   *          The staff to resolve pitches for.
+   * @param info
+   *          The info about the staffs in the sheet.
+   */
+  public PitchResolver(Staff staff, StaffInfo info) {
+    this.lines = new StaffLine[5];
+    for (int i = 0; i < 5; i++) {
+      this.lines[i] = staff.getLine(i);
+    }
+    this.topBound = staff.getTopBound();
+    this.bottomBound = staff.getBottomBound();
+
+    double halfLineHeight = info.getModeLineHeight() / 2.0;
+    int lineDistance = info.getModeLineDistance();
+    this.lineCenterDistance = info.getModeLineHeight() + lineDistance;
+    this.margin = lineDistance / 4.0 + halfLineHeight;
+
+    this.startX = staff.getLeftBound();
+    this.endX = Math.max(this.startX, staff.getRightBound());
+    int numColumns = this.endX - this.startX + 1;
+    this.aboveBounds = new int[numColumns * numLedgerBounds];
+    this.staffBounds = new int[numColumns * numStaffBounds];
+    this.belowBounds = new int[numColumns * numLedgerBounds];
+    for (int x = this.startX; x <= this.endX; x++) {
+      int column = x - this.startX;
+      this.fillColumn(x, this.aboveBounds, column * numLedgerBounds, this.staffBounds, column
+          * numStaffBounds, this.belowBounds, column * numLedgerBounds);
+    }
+  }
+
+  /**
+   * Gets the pitch of a note head centered at the given location.
+   * 
+   * @param x
+   *          The column of the note head's center.
+   * @param y
+   *          The row of the note head's center.
+   * @return The number of staff positions that the note head is below the top line, negative if
+   *         it is above the top line, or {@link #noPitch} if it is too far from the staff.
+   */
+  public int getPitchCode(int x, int y) {
+    int[] above;
+    int[] inside;
+    int[] below;
+    int aboveStart;
+    int staffStart;
+    int belowStart;
+    if (x >= this.startX && x <= this.endX) {
+      above = this.aboveBounds;
+      inside = this.staffBounds;
+      below = this.belowBounds;
+      aboveStart = (x - this.startX) * numLedgerBounds;
+      staffStart = (x - this.startX) * numStaffBounds;
+      belowStart = aboveStart;
+    }
+    else {
+      above = new int[numLedgerBounds];
+      inside = new int[numStaffBounds];
+      below = new int[numLedgerBounds];
+      aboveStart = 0;
+      staffStart = 0;
+      belowStart = 0;
+      this.fillColumn(x, above, 0, inside, 0, below, 0);
+    }
+
+    if (y < this.topBound) {
+      int index = findPosition(above, aboveStart, numLedgerBounds, y);
+      return index == 0 || index == numLedgerBounds ? noPitch : highestCode + index - 1;
+    }
+    else if (y <= this.bottomBound) {
+      return findPosition(inside, staffStart, numStaffBounds, y);
+    }
+    else {
+      int index = findPosition(below, belowStart, numLedgerBounds, y);
+      return index == 0 || index == numLedgerBounds ? noPitch : numStaffBounds + index - 1;
+    }
+  }
+
+  /**
+   * Gets the name of the pitch with the given code.
+   * 
+   * @param code
+   *          A code returned by {@link #getPitchCode(int, int)}.
+   * @return The name of the pitch, such as "F5", or an empty string for {@link #noPitch}.
+   */
+  public static String getPitchName(int code) {
+    return code == noPitch ? "" : pitchNames[code - highestCode];
+  }
+
+  /**
+   * Computes the last row of every staff position in the given column. The boundaries of each
+   * region are made non-decreasing so that the first boundary that a row does not exceed is also
+   * the first position whose test the row passes.
+   */
+  private void fillColumn(int x, int[] above, int aboveStart, int[] inside, int staffStart,
+      int[] below, int belowStart) {
+    double[] centers = new double[5];
+    for (int i = 0; i < 5; i++) {
+      centers[i] = this.lines[i].getLineEquation().calculateY(x);
+    }
+    double top = centers[0];
+    double bottom = centers[4];
+
+    // Ledger lines and spaces above the staff, from the highest down to the top line
+    int index = aboveStart;
+    double highest = top - ((maxLedgerLines + 1) * this.lineCenterDistance);
+    above[index++] = lastRowAtMost(highest + this.margin);
+    for (int line = maxLedgerLines; line >= 0; line--) {
+      double center = top - (line * this.lineCenterDistance);
+      above[index++] = lastRowBefore(center - this.margin);
+      above[index++] = lastRowAtMost(center + this.margin);
+    }
+
+    // Lines and spaces inside the staff
+    index = staffStart;
+    inside[index++] = lastRowAtMost(centers[0] + this.margin);
+    for (int line = 1; line < 4; line++) {
+      inside[index++] = lastRowBefore(centers[line] - this.margin);
+      inside[index++] = lastRowAtMost(centers[line] + this.margin);
+    }
+    inside[index++] = lastRowAtMost(centers[4] - this.margin);
+
+    // Ledger lines and spaces below the staff, from the bottom line down to the lowest
+    index = belowStart;
+    below[index++] = lastRowBefore(bottom - this.margin);
+    for (int line = 0; line <= maxLedgerLines; line++) {
+      double center = bottom + (line * this.lineCenterDistance);
+      double nextCenter = bottom + ((line + 1) * this.lineCenterDistance);
+      below[index++] = lastRowAtMost(center + this.margin);
+      below[index++] = lastRowBefore(nextCenter - this.margin);
+    }
+
+    makeNonDecreasing(above, aboveStart, numLedgerBounds);
+    makeNonDecreasing(inside, staffStart, numStaffBounds);
+    makeNonDecreasing(below, belowStart, numLedgerBounds);
+  }
+
+  private static int lastRowAtMost(double value) {
+    return (int) Math.floor(value);
+  }
+
+  private static int lastRowBefore(double value) {
+    return (int) Math.ceil(value) - 1;
+  }
+
+  private static void makeNonDecreasing(int[] bounds, int start, int length) {
+    for (int i = start + 1, end = start + length; i < end; i++) {
+      bounds[i] = Math.max(bounds[i], bounds[i - 1]);
+    }
+  }
+
+  /**
+   * Finds the first boundary that the given row does not exceed.
+   * 
+   * @return The index of the boundary relative to the start, or the length if there is none.
+   */
+  private static int findPosition(int[] bounds, int start, int length, int y) {
+    int low = 0;
+    int high = length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (bounds[start + middle] < y) {
+        low = middle + 1;
+      }
+      else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+}
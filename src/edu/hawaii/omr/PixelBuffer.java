@@ -0,0 +1,127 @@
+package edu.hawaii.omr;
+
+import org.opencv.core.Mat;
+
+/**
+ * A bulk copy of the pixels of an 8-bit image. The pixels are fetched from the native matrix in a
+ * single call and written back in a single call so that hot loops do not cross JNI (and allocate
+ * a new array) for every pixel.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class PixelBuffer {
+
+  private final byte[] data;
+  private final int rows;
+  private final int cols;
+  private final int channels;
+  private final int stride;
+
+  /**
+   * Creates a new buffer containing a copy of the given matrix's pixels.
+   * 
+   * @param matrix
+   *          The 8-bit matrix to copy.
+   */
+  public PixelBuffer(Mat matrix) {
+    this(matrix.rows(), matrix.cols(), matrix.channels());
+    if (this.data.length > 0) {
+      matrix.get(0, 0, this.data);
+    }
+  }
+
+  /**
+   * Creates a new buffer with every pixel set to 0.
+   * 
+   * @param rows
+   *          The number of rows in the buffer.
+   * @param cols
+   *          The number of columns in the buffer.
+   * @param channels
+   *          The number of channels per pixel.
+   */
+  public PixelBuffer(int rows, int cols, int channels) {
+    this.rows = rows;
+    this.cols = cols;
+    this.channels = channels;
+    this.stride = cols * channels;
+    this.data = new byte[rows * this.stride];
+  }
+
+  public int rows() {
+    return this.rows;
+  }
+
+  public int cols() {
+    return this.cols;
+  }
+
+  public int channels() {
+    return this.channels;
+  }
+
+  /**
+   * Gets the number of bytes between the start of one row and the start of the next.
+   * 
+   * @return The row stride of the buffer.
+   */
+  public int getStride() {
+    return this.stride;
+  }
+
+  public int getRowOffset(int y) {
+    return y * this.stride;
+  }
+
+  public int getIndex(int x, int y) {
+    return y * this.stride + x * this.channels;
+  }
+
+  /**
+   * Gets the first channel of the pixel at the given location.
+   * 
+   * @param x
+   *          The column of the pixel.
+   * @param y
+   *          The row of the pixel.
+   * @return The unsigned value of the pixel's first channel.
+   */
+  public int get(int x, int y) {
+    return this.data[y * this.stride + x * this.channels] & 0xFF;
+  }
+
+  public int get(int x, int y, int channel) {
+    return this.data[y * this.stride + x * this.channels + channel] & 0xFF;
+  }
+
+  public void set(int x, int y, int value) {
+    this.data[y * this.stride + x * this.channels] = (byte) value;
+  }
+
+  public void set(int x, int y, int channel, int value) {
+    this.data[y * this.stride + x * this.channels + channel] = (byte) value;
+  }
+
+  /**
+   * Gets the backing array of the buffer. Pixel (x, y) channel c is at index y * stride + x *
+   * channels + c.
+   * 
+   * @return The backing array.
+   */
+  public byte[] getData() {
+    return this.data;
+  }
+
+  /**
+   * Writes the contents of the buffer back into the given matrix in a single call.
+   * 
+   * @param matrix
+   *          The 8-bit matrix to write to. Must have the same dimensions as the buffer.
+   */
+  public void writeTo(Mat matrix) {
+    if (this.data.length > 0) {
+      matrix.put(0, 0, this.data);
+    }
+  }
+}
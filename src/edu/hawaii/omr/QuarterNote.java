@@ -5,7 +5,6 @@ import org.opencv.core.Mat;
 
 public class QuarterNote extends NoteHead {
   private double angle = Math.PI / 6; // 30 degrees
-  private double height;
   public final double threshold = 0.40;
 
   public QuarterNote(int xCoordinate, int yCoordinate) {
@@ -16,34 +15,35 @@ public class QuarterNote extends NoteHead {
   }
 
   public QuarterNote(int height) {
-    this.height = height;
+    super.height = height;
+    super.angleRotation = angle;
+    super.type = "Quarter";
   }
 
   public Mat makeNoteHeadTemplate() {
     super.angleRotation = angle;
 
-    super.template = new Mat((int) (2 * height), (int) (2 * height), CvType.CV_8UC1);
+    int size = (int) (2 * height);
+    PixelBuffer pixels = new PixelBuffer(size, size, 1);
+    double cos = Math.cos(angleRotation);
+    double sin = Math.sin(angleRotation);
+    double heightSquared = height * height;
+    double halfHeightSquared = (height / 2.0) * (height / 2.0);
 
     for (int y = 0; y > (2 * height * -1); y--) {
       for (int x = 0; x < (2 * height); x++) {
+        double rotatedX = (x - height) * cos + (y + height) * sin;
+        double rotatedY = (x - height) * sin - (y + height) * cos;
         double value =
-            (Math.pow(
-                (x - height) * Math.cos(angleRotation) + (y + height) * Math.sin(angleRotation), 2) / Math
-                .pow(height, 2))
-                + (Math
-                    .pow(
-                        (x - height) * Math.sin(angleRotation) - (y + height)
-                            * Math.cos(angleRotation), 2) / Math.pow(height / 2.0, 2));
+            (rotatedX * rotatedX / heightSquared) + (rotatedY * rotatedY / halfHeightSquared);
         if (value < 1) {
-          double data[] = { 255 };
-          template.put(Math.abs(y), x, data);
-        }
-        else {
-          double data[] = { 0 };
-          template.put(Math.abs(y), x, data);
+          pixels.set(x, Math.abs(y), 255);
         }
       }
     }
+
+    template = new Mat(size, size, CvType.CV_8UC1);
+    pixels.writeTo(template);
     return template;
   }
 }
@@ -0,0 +1,234 @@
+package edu.hawaii.omr;
+
+import java.util.Arrays;
+
+/**
+ * A run-length encoded copy of a binary image. The foreground is stored both as horizontal runs
+ * for every row and as vertical runs for every column, so mostly empty sheets can be processed in
+ * time proportional to the number of runs instead of the number of pixels. Run ends are inclusive.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class RunLengthImage {
+
+  private final int rows;
+  private final int cols;
+
+  /**
+   * The runs of row y are at indices [rowOffsets[y], rowOffsets[y + 1]).
+   */
+  private final int[] rowOffsets;
+  private final int[] rowRunStarts;
+  private final int[] rowRunEnds;
+
+  /**
+   * The runs of column x are at indices [columnOffsets[x], columnOffsets[x + 1]).
+   */
+  private final int[] columnOffsets;
+  private final int[] columnRunStarts;
+  private final int[] columnRunEnds;
+
+  /**
+   * Encodes the given image in a single pass over its pixels.
+   * 
+   * @param pixels
+   *          The pixels of the binary image.
+   * @param foreground
+   *          The color of the foreground.
+   */
+  public RunLengthImage(PixelBuffer pixels, int foreground) {
+    this.rows = pixels.rows();
+    this.cols = pixels.cols();
+    this.rowOffsets = new int[this.rows + 1];
+
+    RunList rowRuns = new RunList();
+    RunList columnRuns = new RunList();
+    int[] columnRunX = new int[16];
+    int[] openColumnRuns = new int[this.cols];
+    Arrays.fill(openColumnRuns, -1);
+
+    byte[] data = pixels.getData();
+    int channels = pixels.channels();
+    byte foregroundByte = (byte) foreground;
+
+    for (int y = 0; y < this.rows; y++) {
+      this.rowOffsets[y] = rowRuns.size;
+      int rowOffset = pixels.getRowOffset(y);
+      int runStart = -1;
+      for (int x = 0; x < this.cols; x++) {
+        boolean isForeground = data[rowOffset + x * channels] == foregroundByte;
+        if (isForeground) {
+          if (runStart == -1) {
+            runStart = x;
+          }
+          if (openColumnRuns[x] == -1) {
+            openColumnRuns[x] = y;
+          }
+        }
+        else {
+          if (runStart != -1) {
+            rowRuns.add(runStart, x - 1);
+            runStart = -1;
+          }
+          if (openColumnRuns[x] != -1) {
+            columnRunX = add(columnRunX, columnRuns.size, x);
+            columnRuns.add(openColumnRuns[x], y - 1);
+            openColumnRuns[x] = -1;
+          }
+        }
+      }
+      if (runStart != -1) {
+        rowRuns.add(runStart, this.cols - 1);
+      }
+    }
+    this.rowOffsets[this.rows] = rowRuns.size;
+    this.rowRunStarts = Arrays.copyOf(rowRuns.starts, rowRuns.size);
+    this.rowRunEnds = Arrays.copyOf(rowRuns.ends, rowRuns.size);
+
+    // Close the column runs that reach the bottom of the image
+    for (int x = 0; x < this.cols; x++) {
+      if (openColumnRuns[x] != -1) {
+        columnRunX = add(columnRunX, columnRuns.size, x);
+        columnRuns.add(openColumnRuns[x], this.rows - 1);
+      }
+    }
+
+    // Group the column runs by column. Runs in a column were closed from top to bottom, so a
+    // stable counting sort keeps them in order.
+    int numColumnRuns = columnRuns.size;
+    this.columnOffsets = new int[this.cols + 1];
+    for (int i = 0; i < numColumnRuns; i++) {
+      this.columnOffsets[columnRunX[i] + 1]++;
+    }
+    for (int x = 0; x < this.cols; x++) {
+      this.columnOffsets[x + 1] += this.columnOffsets[x];
+    }
+    int[] next = Arrays.copyOf(this.columnOffsets, this.cols);
+    this.columnRunStarts = new int[numColumnRuns];
+    this.columnRunEnds = new int[numColumnRuns];
+    for (int i = 0; i < numColumnRuns; i++) {
+      int index = next[columnRunX[i]]++;
+      this.columnRunStarts[index] = columnRuns.starts[i];
+      this.columnRunEnds[index] = columnRuns.ends[i];
+    }
+  }
+
+  public int rows() {
+    return this.rows;
+  }
+
+  public int cols() {
+    return this.cols;
+  }
+
+  public int countRowRuns() {
+    return this.rowOffsets[this.rows];
+  }
+
+  public int getRowRunCount(int y) {
+    return this.rowOffsets[y + 1] - this.rowOffsets[y];
+  }
+
+  public int getRowRunStart(int y, int index) {
+    return this.rowRunStarts[this.rowOffsets[y] + index];
+  }
+
+  public int getRowRunEnd(int y, int index) {
+    return this.rowRunEnds[this.rowOffsets[y] + index];
+  }
+
+  public int getColumnRunCount(int x) {
+    return this.columnOffsets[x + 1] - this.columnOffsets[x];
+  }
+
+  public int getColumnRunStart(int x, int index) {
+    return this.columnRunStarts[this.columnOffsets[x] + index];
+  }
+
+  public int getColumnRunEnd(int x, int index) {
+    return this.columnRunEnds[this.columnOffsets[x] + index];
+  }
+
+  /**
+   * Finds the first run in the given row that ends at or after the given column.
+   * 
+   * @param y
+   *          The row to search.
+   * @param x
+   *          The column to search from.
+   * @return The index of the run in the row, or the row's run count if there is no such run.
+   */
+  public int nextRowRun(int y, int x) {
+    return search(this.rowRunEnds, this.rowOffsets[y], this.rowOffsets[y + 1], x)
+        - this.rowOffsets[y];
+  }
+
+  /**
+   * Finds the first run in the given column that ends at or after the given row.
+   * 
+   * @param x
+   *          The column to search.
+   * @param y
+   *          The row to search from.
+   * @return The index of the run in the column, or the column's run count if there is no such run.
+   */
+  public int nextColumnRun(int x, int y) {
+    return search(this.columnRunEnds, this.columnOffsets[x], this.columnOffsets[x + 1], y)
+        - this.columnOffsets[x];
+  }
+
+  public boolean isForeground(int x, int y) {
+    int index = this.nextColumnRun(x, y);
+    return index < this.getColumnRunCount(x) && this.getColumnRunStart(x, index) <= y;
+  }
+
+  public int countForeground() {
+    int count = 0;
+    for (int i = 0, numRuns = this.rowOffsets[this.rows]; i < numRuns; i++) {
+      count += this.rowRunEnds[i] - this.rowRunStarts[i] + 1;
+    }
+    return count;
+  }
+
+  /**
+   * Finds the first index in [from, to) whose run end is at least the given value.
+   */
+  private static int search(int[] ends, int from, int to, int value) {
+    int low = from;
+    int high = to;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (ends[middle] < value) {
+        low = middle + 1;
+      }
+      else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private static int[] add(int[] array, int index, int value) {
+    if (index == array.length) {
+      array = Arrays.copyOf(array, array.length * 2);
+    }
+    array[index] = value;
+    return array;
+  }
+
+  /**
+   * A growable list of runs.
+   */
+  private static class RunList {
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int size = 0;
+
+    public void add(int start, int end) {
+      this.starts = RunLengthImage.add(this.starts, this.size, start);
+      this.ends = RunLengthImage.add(this.ends, this.size, end);
+      this.size++;
+    }
+  }
+}
@@ -1,25 +1,29 @@
 package edu.hawaii.omr;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
 import org.opencv.highgui.Highgui;
 
 public class SheetMusicMatrix extends ImageMatrix {
 
   private static final double modeThreshold = 0.33;
   private static final double staffWidthThreshold = 0.4;
+  private static final int tilesPerThread = 4;
+  private static final int minTileWidth = 16;
 
   private static final Staff.TopComparator staffComparator = new Staff.TopComparator();
   private static final Staff.BottomComparator bottomComparator = new Staff.BottomComparator();
@@ -27,6 +31,7 @@ public class SheetMusicMatrix extends ImageMatrix {
 
   private SortedSet<Staff> staffs = null;
   private StaffInfo info = null;
+  private RunLengthImage runs = null;
 
   public SheetMusicMatrix(Mat matrix) {
     super(matrix.rows(), matrix.cols(), matrix.type());
@@ -36,7 +41,9 @@ public class SheetMusicMatrix extends ImageMatrix {
   }
 
   public SheetMusicMatrix(int rows, int cols, int type) {
-    this(Mat.zeros(rows, cols, type));
+    super(rows, cols, type);
+    this.staffs = new TreeSet<>(staffComparator);
+    this.minStaffWidth = (int) Math.round(this.cols() * staffWidthThreshold);
   }
 
   public StaffInfo getStaffInfo() {
@@ -46,11 +53,22 @@ public class SheetMusicMatrix extends ImageMatrix {
     return this.info;
   }
 
+  /**
+   * Gets the staff info, scanning the sheet on the given thread pool if it has not been found yet.
+   * 
+   * @param threadPool
+   *          The pool to scan the sheet's columns on.
+   * @return The info about the staffs in the sheet.
+   */
+  public StaffInfo getStaffInfo(ExecutorService threadPool) {
+    if (this.info == null) {
+      this.findStaffInfo(threadPool);
+    }
+    return this.info;
+  }
+
   private void findStaffInfo() {
-    ExecutorService threadPool =
-        Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-    this.findStaffInfo(threadPool);
-    threadPool.shutdown();
+    this.findStaffInfo(ForkJoinPool.commonPool());
   }
 
   private StaffInfo findStaffInfo(ExecutorService threadPool) {
@@ -63,31 +81,85 @@ public class SheetMusicMatrix extends ImageMatrix {
       this.invert();
     }
 
-    StaffInfo info = new StaffInfo();
+    this.runs = this.toRunLengthImage(255);
 
+    int width = this.cols();
+    int tileWidth = this.getTileWidth();
     List<FindInfoCallable> callables = new ArrayList<>();
-    for (int x = 0, width = this.cols(); x < width; x++) {
-      callables.add(new FindInfoCallable(this, x));
+    for (int x = 0; x < width; x += tileWidth) {
+      callables.add(new FindInfoCallable(this.runs, x, Math.min(x + tileWidth, width)));
     }
+
+    StaffInfo info = new StaffInfo(this.rows());
     try {
-      List<Future<StaffInfo>> results = threadPool.invokeAll(callables);
-      for (Future<StaffInfo> future : results) {
-        info.addStaffInfo(future.get());
+      List<StaffInfo> partials = new ArrayList<>();
+      for (Future<StaffInfo> future : threadPool.invokeAll(callables)) {
+        partials.add(future.get());
+      }
+      if (!partials.isEmpty()) {
+        info = mergeStaffInfo(partials, threadPool);
       }
     }
     catch (InterruptedException e) {
-      // Do nothing for now...
+      // The merges add to the partial results in place, so scan the whole sheet again on this
+      // thread instead of counting some columns twice, and leave the interrupt for the caller
+      Thread.currentThread().interrupt();
+      info = new FindInfoCallable(this.runs, 0, width).call();
     }
     catch (ExecutionException e) {
-      // Do nothing, it should not happen...
+      throw new IllegalStateException("Could not find the staff info", e.getCause());
     }
     this.info = info;
     return info;
   }
 
+  /**
+   * Gets the width of the blocks of columns that are scanned by a single task. There are a few
+   * blocks per thread so that uneven blocks balance out.
+   */
+  private int getTileWidth() {
+    int numTiles = Runtime.getRuntime().availableProcessors() * tilesPerThread;
+    return Math.max(minTileWidth, (this.cols() + numTiles - 1) / numTiles);
+  }
+
+  /**
+   * Merges the partial results in a tree, merging neighboring pairs in parallel until only one is
+   * left.
+   */
+  private static StaffInfo mergeStaffInfo(List<StaffInfo> partials, ExecutorService threadPool)
+      throws InterruptedException, ExecutionException {
+    while (partials.size() > 1) {
+      List<MergeInfoCallable> merges = new ArrayList<>();
+      for (int i = 0; i + 1 < partials.size(); i += 2) {
+        merges.add(new MergeInfoCallable(partials.get(i), partials.get(i + 1)));
+      }
+      List<StaffInfo> merged = new ArrayList<>();
+      for (Future<StaffInfo> future : threadPool.invokeAll(merges)) {
+        merged.add(future.get());
+      }
+      if (partials.size() % 2 == 1) {
+        merged.add(partials.get(partials.size() - 1));
+      }
+      partials = merged;
+    }
+    return partials.get(0);
+  }
+
   public void findStaffLines() {
+    this.findStaffLines(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Finds the staffs in the sheet. Blocks of columns are searched in parallel on the given thread
+   * pool and their staffs are added in column order, so the result is the same as searching the
+   * columns one at a time.
+   * 
+   * @param threadPool
+   *          The pool to search the blocks of columns on.
+   */
+  public void findStaffLines(ExecutorService threadPool) {
     if (this.info == null) {
-      this.findStaffInfo();
+      this.findStaffInfo(threadPool);
     }
     this.staffs = new TreeSet<>(staffComparator);
     Range distanceRange = this.info.getModeLineDistance(modeThreshold);
@@ -96,146 +168,122 @@ public class SheetMusicMatrix extends ImageMatrix {
     heightRange.setLowerBound(heightRange.getLowerBound() - 1);
     distanceRange.setUpperBound(distanceRange.getUpperBound() + 1);
 
-    for (int x = 0, width = this.cols(); x < width; x++) {
-      for (int y = 0, height = this.rows(); y < height; y++) {
-        StaffLine line1 = null;
-        StaffLine line2 = null;
-        StaffLine line3 = null;
-        StaffLine line4 = null;
-        StaffLine line5 = null;
-        if (this.get(y, x)[0] == 255) {
-          line1 = new StaffLine();
-
-          int temp = y;
-          // Check first line
-          int lineHeight = checkHeight(x, y, heightRange);
-          if (lineHeight == -1) {
-            continue;
-          }
-          else {
-            for (int j = 0; j < lineHeight; j++) {
-              line1.addPoint(new Point(x, temp++));
-            }
-
-            // Check first gap
-            int gap = checkDistance(x, temp, distanceRange);
-            if (gap == -1) {
-              continue;
-            }
-            else {
-              temp += gap;
-            }
-          }
-
-          // Check second line
-          lineHeight = checkHeight(x, temp, heightRange);
-          if (lineHeight == -1) {
-            continue;
-          }
-          else {
-            line2 = new StaffLine();
-            for (int j = 0; j < lineHeight; j++) {
-              line2.addPoint(new Point(x, temp++));
-            }
-
-            // Check second gap
-            int gap = checkDistance(x, temp, distanceRange);
-            if (gap == -1) {
-              continue;
-            }
-            else {
-              temp += gap;
-            }
-          }
+    int width = this.cols();
+    int tileWidth = this.getTileWidth();
+    List<FindStaffsCallable> callables = new ArrayList<>();
+    for (int x = 0; x < width; x += tileWidth) {
+      callables.add(new FindStaffsCallable(this.runs, x, Math.min(x + tileWidth, width),
+          heightRange, distanceRange));
+    }
+    int numSearched = 0;
+    try {
+      for (Future<List<Staff>> future : threadPool.invokeAll(callables)) {
+        this.addStaffs(future.get());
+        numSearched++;
+      }
+    }
+    catch (InterruptedException e) {
+      // Search the rest of the columns on this thread so that no staff is left out, and leave the
+      // interrupt for the caller
+      Thread.currentThread().interrupt();
+      for (int i = numSearched; i < callables.size(); i++) {
+        this.addStaffs(callables.get(i).call());
+      }
+    }
+    catch (ExecutionException e) {
+      throw new IllegalStateException("Could not find the staffs in the columns from "
+          + numSearched * tileWidth, e.getCause());
+    }
+  }
 
-          // Check third line
-          lineHeight = checkHeight(x, temp, heightRange);
-          if (lineHeight == -1) {
-            continue;
-          }
-          else {
-            line3 = new StaffLine();
-            for (int j = 0; j < lineHeight; j++) {
-              line3.addPoint(new Point(x, temp++));
-            }
-
-            // Check third gap
-            int gap = checkDistance(x, temp, distanceRange);
-            if (gap == -1) {
-              continue;
-            }
-            else {
-              temp += gap;
-            }
-          }
+  private void addStaffs(List<Staff> staffs) {
+    for (Staff staff : staffs) {
+      this.staffs.add(staff);
+      this.info.addStaffHeight(staff.getBottomBound() - staff.getTopBound());
+    }
+  }
 
-          // Check fourth line
-          lineHeight = checkHeight(x, temp, heightRange);
-          if (lineHeight == -1) {
-            continue;
-          }
-          else {
-            line4 = new StaffLine();
-            for (int j = 0; j < lineHeight; j++) {
-              line4.addPoint(new Point(x, temp++));
-            }
-
-            // Check fourth gap
-            int gap = checkDistance(x, temp, distanceRange);
-            if (gap == -1) {
-              continue;
-            }
-            else {
-              temp += gap;
-            }
-          }
+  /**
+   * Finds every place in a column where five lines with heights in the height range are separated
+   * by gaps in the distance range. A staff can start at any pixel of a run as long as the rest of
+   * the run is tall enough to be a line, and every start in a run is followed by the same four
+   * lines, so the rest of the pattern is only matched once per run.
+   * 
+   * @param runs
+   *          The foreground runs of the sheet.
+   * @param x
+   *          The column to search.
+   * @param heightRange
+   *          The allowed line heights.
+   * @param distanceRange
+   *          The allowed distances between lines.
+   * @param segments
+   *          The list to add the found segments to, in order of their top row.
+   */
+  private static void findStaffSegments(RunLengthImage runs, int x, Range heightRange,
+      Range distanceRange, List<StaffSegment> segments) {
+    int minHeight = Math.max(heightRange.getLowerBound(), 1);
+    int maxHeight = heightRange.getUpperBound();
+    for (int run = 0, numRuns = runs.getColumnRunCount(x); run < numRuns; run++) {
+      int runStart = runs.getColumnRunStart(x, run);
+      int runEnd = runs.getColumnRunEnd(x, run);
+
+      // Tops of the first line that leave a valid line height in the run
+      int firstTop = Math.max(runStart, runEnd - maxHeight + 1);
+      int lastTop = runEnd - minHeight + 1;
+      if (firstTop > lastTop) {
+        continue;
+      }
 
-          // Check fifth line
-          lineHeight = checkHeight(x, temp, heightRange);
-          if (lineHeight == -1) {
-            continue;
-          }
-          else {
-            line5 = new StaffLine();
-            for (int j = 0; j < lineHeight; j++) {
-              line5.addPoint(new Point(x, temp++));
-            }
-
-            Staff staff = new Staff(line1, line2, line3, line4, line5);
-            this.staffs.add(staff);
-            this.info.addStaffHeight(staff.getBottomBound() - staff.getTopBound());
-          }
-        }
+      int[] tops = new int[5];
+      int[] bottoms = new int[5];
+      bottoms[0] = runEnd;
+      if (!matchLines(runs, x, run, heightRange, distanceRange, tops, bottoms)) {
+        continue;
+      }
+      for (int top = firstTop; top <= lastTop; top++) {
+        int[] staffTops = tops.clone();
+        staffTops[0] = top;
+        segments.add(new StaffSegment(x, staffTops, bottoms));
       }
     }
   }
 
-  private int checkHeight(int x, int y, Range heightRange) {
-    for (int i = 1; i <= heightRange.getUpperBound(); i++) {
-      if (y + i >= this.rows() || this.get(y + i, x)[0] != 255) {
-        if (i < heightRange.getLowerBound()) {
-          return -1;
-        }
-        else {
-          return i;
-        }
+  /**
+   * Matches the four gaps and lines that follow the given run.
+   * 
+   * @return If all four lines were found.
+   */
+  private static boolean matchLines(RunLengthImage runs, int x, int run, Range heightRange,
+      Range distanceRange, int[] tops, int[] bottoms) {
+    int numRuns = runs.getColumnRunCount(x);
+    int lineEnd = runs.getColumnRunEnd(x, run);
+    for (int line = 1; line < 5; line++) {
+
+      // The gap ends at the first foreground pixel at least the minimum distance away
+      int gapStart = lineEnd + 1;
+      int searchY = gapStart + distanceRange.getLowerBound();
+      while (run < numRuns && runs.getColumnRunEnd(x, run) < searchY) {
+        run++;
+      }
+      if (run == numRuns) {
+        return false;
+      }
+      int lineStart = Math.max(runs.getColumnRunStart(x, run), searchY);
+      if (lineStart - gapStart > distanceRange.getUpperBound()) {
+        return false;
       }
-    }
-    return -1;
-  }
 
-  private int checkDistance(int x, int y, Range distanceRange) {
-    for (int i = distanceRange.getLowerBound(); i <= distanceRange.getUpperBound(); i++) {
-      if (y + i < this.rows() && this.get(y + i, x)[0] == 255) {
-        if (i >= distanceRange.getLowerBound()) {
-          return i;
-        }
-        else {
-          return -1;
-        }
+      // The line is the rest of that run
+      lineEnd = runs.getColumnRunEnd(x, run);
+      int height = lineEnd - lineStart + 1;
+      if (height < heightRange.getLowerBound() || height > heightRange.getUpperBound()) {
+        return false;
       }
+      tops[line] = lineStart;
+      bottoms[line] = lineEnd;
     }
-    return -1;
+    return true;
   }
 
   public ImageMatrix getStaffLineImage() {
@@ -260,80 +308,178 @@ public class SheetMusicMatrix extends ImageMatrix {
     if (this.staffs == null) {
       this.findStaffLines();
     }
+
+    // There is nothing to merge, and no staff height to size the index's cells by
+    if (this.staffs.isEmpty()) {
+      return;
+    }
     ConnectedComponentFinder finder = new ConnectedComponentFinder();
-    finder.findConnectedComponents(this.getStaffLineImage(), this.hasWhiteForeground ? 255 : 0);
-    Map<Integer, SortedSet<Point>> labelMap = finder.makeLabelMap();
+    RunLengthImage lineRuns;
+    ImageMatrix lineImage = this.getStaffLineImage();
+    try {
+      lineRuns = lineImage.toRunLengthImage(this.hasWhiteForeground ? 255 : 0);
+    }
+    finally {
+      lineImage.close();
+    }
+    StaffIndex index =
+        new StaffIndex(this.rows(), this.cols(), this.getStaffInfo().getModeStaffHeight());
+    index.addAll(this.staffs);
     Set<Staff> matched = new HashSet<>();
-    for (SortedSet<Point> component : labelMap.values()) {
-      this.associateComponent(component, matched);
+    for (ComponentStats component : finder.findComponentStats(lineRuns)) {
+      this.associateComponent(component, index, matched);
     }
     this.staffs.clear();
     this.staffs.addAll(matched);
   }
 
-  private boolean associateComponent(SortedSet<Point> component, Set<Staff> matched) {
-    boolean found = false;
-    Point topLeft = component.first();
-    for (Staff staff : this.staffs) {
+  private boolean associateComponent(ComponentStats component, StaffIndex index,
+      Set<Staff> matched) {
+    Point topLeft = component.getFirstPoint();
+    List<Staff> found = new ArrayList<>();
+    for (Staff staff : index.getStaffs(topLeft.getX(), topLeft.getY())) {
       StaffLine line = staff.contains(topLeft);
       if (line != null) {
-        for (Point point : component) {
-          line.addPoint(point);
-        }
+        line.addColumns(component.getColumns());
         // I don't like this... find better way...
         staff.setBounds();
         matched.add(staff);
-        found = true;
+        found.add(staff);
       }
     }
-    return found;
+
+    // Update the index after the scan since the staffs may have grown into new cells
+    for (Staff staff : found) {
+      index.update(staff);
+    }
+    return !found.isEmpty();
   }
 
+  /**
+   * Merges staffs whose top or bottom bounds are within half a line distance of each other into a
+   * single staff, dropping any merged staff that covers less than the minimum staff width. The
+   * staffs are swept once in order of their top bounds. Since every staff above the current one has
+   * already been grouped, only the staffs below it and those with a nearby bottom bound need to be
+   * looked at, and grouped staffs are skipped over with path-compressed next pointers.
+   */
   public void mergeSeparatedStaffs() {
     if (this.staffs == null) {
       this.findStaffLines();
     }
 
-    List<Staff> results = new ArrayList<>();
-    List<Staff> checked = new ArrayList<>();
-    SortedSet<Staff> bottomStaffs = new TreeSet<>(bottomComparator);
-    bottomStaffs.addAll(this.staffs);
+    int numStaffs = this.staffs.size();
     int margin = (int) Math.ceil(this.info.getModeLineDistance() / 2.0);
 
-    for (Staff staff : this.staffs) {
-      if (!checked.contains(staff)) {
-        int top = staff.getTopBound();
-        int bottom = staff.getBottomBound();
-        Set<Staff> inRange =
-            new HashSet<Staff>(this.staffs.subSet(new Staff(top - margin, 0, 0, 0), new Staff(top
-                + margin + 1, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE)));
-        Set<Staff> bottomRange =
-            bottomStaffs.subSet(new Staff(0, bottom - margin, 0, 0), new Staff(Integer.MAX_VALUE,
-                bottom + margin + 1, Integer.MAX_VALUE, Integer.MAX_VALUE));
-        inRange.addAll(bottomRange);
-        inRange.removeAll(checked);
-
-        Iterator<Staff> iterator = inRange.iterator();
-        if (iterator.hasNext()) {
-          Staff seed = iterator.next();
-          int horizontalCoverage = seed.getHorizontalCoverage();
-          while (iterator.hasNext()) {
-            Staff next = iterator.next();
-            horizontalCoverage += next.getHorizontalCoverage();
-            seed.addStaff(next);
-          }
+    // Sort the staffs by top bound and by bottom bound
+    final Staff[] byTop = this.staffs.toArray(new Staff[numStaffs]);
+    Integer[] bottomOrder = new Integer[numStaffs];
+    for (int i = 0; i < numStaffs; i++) {
+      bottomOrder[i] = i;
+    }
+    Arrays.sort(bottomOrder, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer o1, Integer o2) {
+        return bottomComparator.compare(byTop[o1], byTop[o2]);
+      }
+    });
+
+    // Keep the original bounds since seeds grow as staffs are merged into them
+    int[] tops = new int[numStaffs];
+    int[] bottoms = new int[numStaffs];
+    int[] sortedBottoms = new int[numStaffs];
+    int[] bottomPositions = new int[numStaffs];
+    for (int i = 0; i < numStaffs; i++) {
+      tops[i] = byTop[i].getTopBound();
+      bottoms[i] = byTop[i].getBottomBound();
+      sortedBottoms[i] = byTop[bottomOrder[i]].getBottomBound();
+      bottomPositions[bottomOrder[i]] = i;
+    }
 
-          if (horizontalCoverage >= minStaffWidth) {
-            results.add(seed);
-          }
-        }
-        checked.addAll(inRange);
+    // The next staff that has not been grouped yet in each order
+    int[] nextByTop = new int[numStaffs + 1];
+    int[] nextByBottom = new int[numStaffs + 1];
+    for (int i = 0; i <= numStaffs; i++) {
+      nextByTop[i] = i;
+      nextByBottom[i] = i;
+    }
+
+    List<Staff> results = new ArrayList<>();
+    List<Integer> group = new ArrayList<>();
+    for (int i = findUngrouped(nextByTop, 0); i < numStaffs; i = findUngrouped(nextByTop, i + 1)) {
+      group.clear();
+
+      // Staffs whose top bounds are in range, all of which are at or below this one
+      int upperBound = tops[i] + margin + 1;
+      int j = i;
+      while (j < numStaffs && tops[j] <= upperBound) {
+        group.add(j);
+        nextByTop[j] = j + 1;
+        nextByBottom[bottomPositions[j]] = bottomPositions[j] + 1;
+        j = findUngrouped(nextByTop, j + 1);
+      }
+
+      // Staffs whose bottom bounds are in range
+      upperBound = bottoms[i] + margin + 1;
+      j = findUngrouped(nextByBottom, findFirstAtLeast(sortedBottoms, bottoms[i] - margin));
+      while (j < numStaffs && sortedBottoms[j] <= upperBound) {
+        int index = bottomOrder[j];
+        group.add(index);
+        nextByTop[index] = index + 1;
+        nextByBottom[j] = j + 1;
+        j = findUngrouped(nextByBottom, j + 1);
+      }
+
+      Staff seed = byTop[i];
+      int horizontalCoverage = seed.getHorizontalCoverage();
+      for (int k = 1; k < group.size(); k++) {
+        Staff next = byTop[group.get(k)];
+        horizontalCoverage += next.getHorizontalCoverage();
+        seed.addStaff(next);
+      }
+
+      if (horizontalCoverage >= minStaffWidth) {
+        results.add(seed);
       }
     }
     this.staffs.clear();
     this.staffs.addAll(results);
   }
 
+  /**
+   * Finds the first ungrouped position at or after the given one, compressing the path of next
+   * pointers along the way.
+   */
+  private static int findUngrouped(int[] next, int position) {
+    int root = position;
+    while (next[root] != root) {
+      root = next[root];
+    }
+    while (next[position] != root) {
+      int following = next[position];
+      next[position] = root;
+      position = following;
+    }
+    return root;
+  }
+
+  /**
+   * Finds the position of the first value that is at least the given value in a sorted array.
+   */
+  private static int findFirstAtLeast(int[] values, int value) {
+    int low = 0;
+    int high = values.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (values[middle] < value) {
+        low = middle + 1;
+      }
+      else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
   public void mergeStaffs() {
     this.mergeConnectedStaffs();
     this.mergeSeparatedStaffs();
@@ -391,8 +537,8 @@ public class SheetMusicMatrix extends ImageMatrix {
       containedStaff = iterator.next().clone();
       containedStaff.translateVertically(-startRow);
       staffMat =
-          new StaffMatrix(this.submat(startRow, splitPoints[i], 0, endCol), containedStaff,
-              this.info);
+          new StaffMatrix(this, new Rect(0, startRow, endCol, splitPoints[i] - startRow),
+              containedStaff, this.info);
       staffMat.isBinary = this.isBinary;
       staffMat.hasWhiteForeground = this.hasWhiteForeground;
       split.add(staffMat);
@@ -407,8 +553,8 @@ public class SheetMusicMatrix extends ImageMatrix {
     containedStaff = iterator.next().clone();
     containedStaff.translateVertically(-splitPoints[i - 1]);
     staffMat =
-        new StaffMatrix(this.submat(splitPoints[i - 1], endRow, 0, endCol), containedStaff,
-            this.info);
+        new StaffMatrix(this, new Rect(0, splitPoints[i - 1], endCol, endRow - splitPoints[i - 1]),
+            containedStaff, this.info);
     staffMat.isBinary = this.isBinary;
     staffMat.hasWhiteForeground = this.hasWhiteForeground;
     split.add(staffMat);
@@ -418,71 +564,110 @@ public class SheetMusicMatrix extends ImageMatrix {
   public static SheetMusicMatrix readImage(String filePath, int flags, boolean whiteForeground) {
     Mat matrix = Highgui.imread(filePath, flags);
     SheetMusicMatrix sheet = new SheetMusicMatrix(matrix);
+    matrix.release();
     sheet.hasWhiteForeground = whiteForeground;
     return sheet;
   }
 
-  private class FindInfoCallable implements Callable<StaffInfo> {
+  private static class FindInfoCallable implements Callable<StaffInfo> {
 
-    private SheetMusicMatrix sheet;
-    private int column;
+    private RunLengthImage runs;
+    private int startColumn;
+    private int endColumn;
 
-    public FindInfoCallable(SheetMusicMatrix sheet, int column) {
-      this.sheet = sheet;
-      this.column = column;
+    public FindInfoCallable(RunLengthImage runs, int startColumn, int endColumn) {
+      this.runs = runs;
+      this.startColumn = startColumn;
+      this.endColumn = endColumn;
     }
 
     @Override
-    public StaffInfo call() throws Exception {
-      int foregroundColor = hasWhiteForeground ? 255 : 0;
+    public StaffInfo call() {
+      StaffInfo info = new StaffInfo(this.runs.rows());
+      for (int column = this.startColumn; column < this.endColumn; column++) {
+        this.scanColumn(column, info);
+      }
+      return info;
+    }
 
-      StaffInfo info = new StaffInfo();
+    private void scanColumn(int column, StaffInfo info) {
+      int height = this.runs.rows();
 
+      // The end of the last foreground section that was more than 1 pixel high
       final int notSet = -1;
       int lineEnd = notSet;
-      int lineBegin = notSet;
-
-      for (int y = 0, height = this.sheet.rows(); y < height; y++) {
-        int rgb = (int) this.sheet.get(y, column)[0];
-        if (rgb == foregroundColor) {
-          // Start of a new foreground section
-          if (lineBegin == notSet) {
-            lineBegin = y;
-            if (y != 0) {
-              // There was a background section between first foreground pixel and top of sheet
-              if (lineEnd == notSet) {
-                info.addLineDistance(lineBegin);
-              }
-
-              // There was a background section between foreground sections
-              else {
-                info.addLineDistance(lineBegin - lineEnd - 1);
-              }
-            }
+
+      for (int run = 0, numRuns = this.runs.getColumnRunCount(column); run < numRuns; run++) {
+        int lineBegin = this.runs.getColumnRunStart(column, run);
+        int runEnd = this.runs.getColumnRunEnd(column, run);
+        if (lineBegin != 0) {
+          // There was a background section between first foreground section and top of sheet
+          if (lineEnd == notSet) {
+            info.addLineDistance(lineBegin);
           }
 
-          // Continue the foreground section
+          // There was a background section between foreground sections
           else {
-            lineEnd = y;
+            info.addLineDistance(lineBegin - lineEnd - 1);
           }
         }
 
-        // Encountered background pixel after going through a foreground section
-        else if (lineBegin != notSet) {
-          // One pixel high
-          if (lineEnd == notSet || lineBegin > lineEnd) {
-            info.addLineHeight(1);
-          }
-
-          // Foreground section was more than 1 pixel high
-          else {
-            info.addLineHeight(lineEnd - lineBegin + 1);
-          }
-          lineBegin = notSet;
+        // Sections that reach the bottom of the sheet are not counted
+        if (runEnd != height - 1) {
+          info.addLineHeight(runEnd - lineBegin + 1);
+        }
+        if (runEnd > lineBegin) {
+          lineEnd = runEnd;
         }
       }
-      return info;
     }
+  }
+
+  private static class FindStaffsCallable implements Callable<List<Staff>> {
+
+    private RunLengthImage runs;
+    private int startColumn;
+    private int endColumn;
+    private Range heightRange;
+    private Range distanceRange;
+
+    public FindStaffsCallable(RunLengthImage runs, int startColumn, int endColumn,
+        Range heightRange, Range distanceRange) {
+      this.runs = runs;
+      this.startColumn = startColumn;
+      this.endColumn = endColumn;
+      this.heightRange = heightRange;
+      this.distanceRange = distanceRange;
+    }
+
+    @Override
+    public List<Staff> call() {
+      List<StaffSegment> segments = new ArrayList<>();
+      for (int x = this.startColumn; x < this.endColumn; x++) {
+        findStaffSegments(this.runs, x, this.heightRange, this.distanceRange, segments);
+      }
+      List<Staff> staffs = new ArrayList<>(segments.size());
+      for (StaffSegment segment : segments) {
+        staffs.add(segment.toStaff());
+      }
+      return staffs;
+    }
+  }
 
+  private static class MergeInfoCallable implements Callable<StaffInfo> {
+
+    private StaffInfo first;
+    private StaffInfo second;
+
+    public MergeInfoCallable(StaffInfo first, StaffInfo second) {
+      this.first = first;
+      this.second = second;
+    }
+
+    @Override
+    public StaffInfo call() throws Exception {
+      this.first.addStaffInfo(this.second);
+      return this.first;
+    }
   }
 }
@@ -0,0 +1,121 @@
+package edu.hawaii.omr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A uniform grid over the bounding boxes of a set of staffs so that the staffs which may contain a
+ * point can be found without checking every staff on the page. Staffs may change after they are
+ * added, in which case {@link #update(Staff)} registers them in the cells they moved into. A staff
+ * is never removed from a cell, so callers must still check the candidates themselves.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class StaffIndex {
+
+  private final int cellSize;
+  private final int numCellRows;
+  private final int numCellCols;
+
+  /**
+   * The staffs overlapping each cell, stored in row-major order. Cells are only allocated once a
+   * staff overlaps them.
+   */
+  private final List<List<Staff>> cells;
+
+  /**
+   * The range of cells that each staff is registered in: first column, last column, first row and
+   * last row. Covers every range the staff's bounding box has had.
+   */
+  private final Map<Staff, int[]> registered;
+
+  /**
+   * Creates a new, empty index.
+   * 
+   * @param rows
+   *          The number of rows in the image containing the staffs.
+   * @param cols
+   *          The number of columns in the image containing the staffs.
+   * @param cellSize
+   *          The width and height of each cell, usually the height of a staff.
+   */
+  public StaffIndex(int rows, int cols, int cellSize) {
+    this.cellSize = Math.max(1, cellSize);
+    this.numCellRows = Math.max(1, (rows + this.cellSize - 1) / this.cellSize);
+    this.numCellCols = Math.max(1, (cols + this.cellSize - 1) / this.cellSize);
+    this.cells =
+        new ArrayList<>(Collections.<List<Staff>> nCopies(this.numCellRows * this.numCellCols,
+            null));
+    this.registered = new IdentityHashMap<>();
+  }
+
+  public void add(Staff staff) {
+    this.update(staff);
+  }
+
+  public void addAll(Iterable<Staff> staffs) {
+    for (Staff staff : staffs) {
+      this.update(staff);
+    }
+  }
+
+  /**
+   * Registers the staff in any cells its bounding box has moved into since it was last added or
+   * updated.
+   * 
+   * @param staff
+   *          The staff whose bounds have changed.
+   */
+  public void update(Staff staff) {
+    int[] range =
+        { this.getCellCol(staff.getLeftBound()), this.getCellCol(staff.getRightBound()),
+            this.getCellRow(staff.getTopBound()), this.getCellRow(staff.getBottomBound()) };
+    int[] old = this.registered.get(staff);
+    if (old != null) {
+      range[0] = Math.min(range[0], old[0]);
+      range[1] = Math.max(range[1], old[1]);
+      range[2] = Math.min(range[2], old[2]);
+      range[3] = Math.max(range[3], old[3]);
+    }
+    this.registered.put(staff, range);
+    for (int row = range[2]; row <= range[3]; row++) {
+      for (int col = range[0]; col <= range[1]; col++) {
+        if (old == null || col < old[0] || col > old[1] || row < old[2] || row > old[3]) {
+          int index = row * this.numCellCols + col;
+          List<Staff> cell = this.cells.get(index);
+          if (cell == null) {
+            cell = new ArrayList<>();
+            this.cells.set(index, cell);
+          }
+          cell.add(staff);
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the staffs whose bounding boxes may contain the given point.
+   * 
+   * @param x
+   *          The column of the point.
+   * @param y
+   *          The row of the point.
+   * @return The staffs registered in the point's cell.
+   */
+  public List<Staff> getStaffs(int x, int y) {
+    List<Staff> cell = this.cells.get(this.getCellRow(y) * this.numCellCols + this.getCellCol(x));
+    return cell == null ? Collections.<Staff> emptyList() : cell;
+  }
+
+  private int getCellRow(int y) {
+    return Math.min(this.numCellRows - 1, Math.max(0, y / this.cellSize));
+  }
+
+  private int getCellCol(int x) {
+    return Math.min(this.numCellCols - 1, Math.max(0, x / this.cellSize));
+  }
+}
@@ -1,186 +1,145 @@
 package edu.hawaii.omr;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 public class StaffInfo {
-  private List<Integer> lineDistances;
-  private List<Integer> lineHeights;
-  private List<Integer> staffHeights;
+  private static final int defaultMaxValue = 64;
 
-  private Map<Integer, Integer> lineDistanceFreq;
-  private Map<Integer, Integer> lineHeightFreq;
-  private Map<Integer, Integer> staffHeightFreq;
-
-  private int lineDistanceMode;
-  private int lineHeightMode;
-  private int staffHeightMode;
+  private Histogram lineDistances;
+  private Histogram lineHeights;
+  private Histogram staffHeights;
 
   private Map<Double, Range> lineDistanceRanges;
   private Map<Double, Range> lineHeightRanges;
 
   public StaffInfo() {
-    this.lineDistances = new ArrayList<>();
-    this.lineHeights = new ArrayList<>();
-    this.staffHeights = new ArrayList<>();
-
-    this.lineDistanceFreq = null;
-    this.lineHeightFreq = null;
-    this.staffHeightFreq = null;
+    this(defaultMaxValue);
+  }
 
-    this.lineDistanceMode = -1;
-    this.lineHeightMode = -1;
-    this.staffHeightMode = -1;
+  /**
+   * Creates a new StaffInfo whose histograms can hold values up to the given maximum (usually the
+   * height of the image) without growing.
+   * 
+   * @param maxValue
+   *          The largest expected value.
+   */
+  public StaffInfo(int maxValue) {
+    this.lineDistances = new Histogram(maxValue);
+    this.lineHeights = new Histogram(maxValue);
+    this.staffHeights = new Histogram(maxValue);
 
     this.lineDistanceRanges = new HashMap<>();
     this.lineHeightRanges = new HashMap<>();
   }
 
-  public void addLineDistance(int distance) {
+  public synchronized void addLineDistance(int distance) {
     this.lineDistances.add(distance);
-    this.lineDistanceFreq = null;
-    this.lineDistanceMode = -1;
     this.lineDistanceRanges.clear();
   }
 
-  public void addLineHeight(int height) {
+  public synchronized void addLineHeight(int height) {
     this.lineHeights.add(height);
-    this.lineHeightFreq = null;
-    this.lineHeightMode = -1;
     this.lineHeightRanges.clear();
   }
 
   public void addStaffHeight(int height) {
     this.staffHeights.add(height);
-    this.staffHeightFreq = null;
-    this.staffHeightMode = -1;
   }
 
   public int getModeLineDistance() {
-    if (this.lineDistanceMode == -1) {
-      if (this.lineDistanceFreq == null) {
-        this.lineDistanceFreq = this.getFrequencyMap(this.lineDistances);
-      }
-      this.lineDistanceMode = this.getMode(this.lineDistanceFreq);
-    }
-    return this.lineDistanceMode;
+    return this.lineDistances.mode;
   }
 
-  public Range getModeLineDistance(double thresholdPercent) {
+  public synchronized Range getModeLineDistance(double thresholdPercent) {
     if (!this.lineDistanceRanges.containsKey(thresholdPercent)) {
-      if (this.lineDistanceFreq == null) {
-        this.lineDistanceFreq = this.getFrequencyMap(this.lineDistances);
-      }
       this.lineDistanceRanges.put(thresholdPercent,
-          this.getModeRange(this.lineDistanceFreq, thresholdPercent));
+          this.lineDistances.getModeRange(thresholdPercent));
     }
     return this.lineDistanceRanges.get(thresholdPercent);
   }
 
   public int getModeLineHeight() {
-    if (this.lineHeightMode == -1) {
-      if (this.lineHeightFreq == null) {
-        this.lineHeightFreq = this.getFrequencyMap(this.lineHeights);
-      }
-      this.lineHeightMode = this.getMode(this.lineHeightFreq);
-    }
-    return this.lineHeightMode;
+    return this.lineHeights.mode;
   }
 
-  public Range getModeLineHeight(double thresholdPercent) {
+  public synchronized Range getModeLineHeight(double thresholdPercent) {
     if (!this.lineHeightRanges.containsKey(thresholdPercent)) {
-      if (this.lineHeightFreq == null) {
-        this.lineHeightFreq = this.getFrequencyMap(this.lineHeights);
-      }
       this.lineHeightRanges.put(thresholdPercent,
-          this.getModeRange(this.lineHeightFreq, thresholdPercent));
+          this.lineHeights.getModeRange(thresholdPercent));
     }
     return this.lineHeightRanges.get(thresholdPercent);
   }
 
   public int getModeStaffHeight() {
-    if (this.staffHeightMode == -1) {
-      if (this.staffHeightFreq == null) {
-        this.staffHeightFreq = this.getFrequencyMap(this.staffHeights);
-      }
-      this.staffHeightMode = this.getMode(this.staffHeightFreq);
-    }
-    return this.staffHeightMode;
+    return this.staffHeights.mode;
   }
 
-  public void addStaffInfo(StaffInfo info) {
-    for (int distance : info.lineDistances) {
-      this.addLineDistance(distance);
-    }
-    for (int height : info.lineHeights) {
-      this.addLineHeight(height);
-    }
+  public synchronized void addStaffInfo(StaffInfo info) {
+    this.lineDistances.addAll(info.lineDistances);
+    this.lineDistanceRanges.clear();
 
-    for (int height : info.staffHeights) {
-      this.addStaffHeight(height);
-    }
-  }
+    this.lineHeights.addAll(info.lineHeights);
+    this.lineHeightRanges.clear();
 
-  private Map<Integer, Integer> getFrequencyMap(List<Integer> list) {
-    Map<Integer, Integer> frequencyMap = new HashMap<Integer, Integer>();
-    for (int value : list) {
-      if (frequencyMap.containsKey(value)) {
-        frequencyMap.put(value, frequencyMap.get(value) + 1);
-      }
-      else {
-        frequencyMap.put(value, 1);
-      }
-    }
-    return frequencyMap;
+    this.staffHeights.addAll(info.staffHeights);
   }
 
-  private int getMode(Map<Integer, Integer> frequencyMap) {
-    int mode = 0;
-    int highestFrequency = 0;
+  /**
+   * Counts how often each non-negative value was seen and keeps track of the most frequent value.
+   * Ties go to the smaller value.
+   */
+  private static class Histogram {
+    private int[] counts;
+    private int mode = 0;
+    private int modeCount = 0;
+
+    public Histogram(int maxValue) {
+      this.counts = new int[maxValue + 1];
+    }
 
-    for (int key : frequencyMap.keySet()) {
-      if (mode == 0) {
-        mode = key;
-        highestFrequency = frequencyMap.get(key);
+    public void add(int value) {
+      if (value >= this.counts.length) {
+        this.counts = Arrays.copyOf(this.counts, Math.max(value + 1, this.counts.length * 2));
       }
-      else if (frequencyMap.get(key) > highestFrequency) {
-        mode = key;
-        highestFrequency = frequencyMap.get(key);
+      int count = ++this.counts[value];
+      if (count > this.modeCount || (count == this.modeCount && value < this.mode)) {
+        this.mode = value;
+        this.modeCount = count;
       }
     }
-    return mode;
-  }
 
-  private Range getModeRange(Map<Integer, Integer> frequencyMap, double thresholdPercent) {
-    List<Integer> survived = new ArrayList<>();
-    int modeFrequency = frequencyMap.get(this.getMode(frequencyMap));
-    double threshold = modeFrequency * thresholdPercent;
-    for (int key : frequencyMap.keySet()) {
-      if (frequencyMap.get(key) > threshold) {
-        survived.add(key);
+    public void addAll(Histogram other) {
+      if (other.counts.length > this.counts.length) {
+        this.counts = Arrays.copyOf(this.counts, other.counts.length);
+      }
+      for (int value = 0; value < other.counts.length; value++) {
+        int count = (this.counts[value] += other.counts[value]);
+        if (count > this.modeCount || (count == this.modeCount && value < this.mode)) {
+          this.mode = value;
+          this.modeCount = count;
+        }
       }
     }
 
-    int lowBound = 0;
-    int highBound = 0;
-
-    for (int key : survived) {
-      if (lowBound == 0) {
-        lowBound = key;
-      }
-      else if (key < lowBound) {
-        lowBound = key;
-      }
-      if (highBound == 0) {
-        highBound = key;
-      }
-      else if (key > highBound) {
-        highBound = key;
+    /**
+     * Finds the smallest and largest values that were seen more than the given percent of the
+     * mode's frequency.
+     */
+    public Range getModeRange(double thresholdPercent) {
+      double threshold = this.modeCount * thresholdPercent;
+      int lowBound = 0;
+      int highBound = 0;
+      for (int value = 0; value < this.counts.length; value++) {
+        if (this.counts[value] > threshold) {
+          if (lowBound == 0) {
+            lowBound = value;
+          }
+          highBound = value;
+        }
       }
+      return new Range(lowBound, highBound);
     }
-
-    return new Range(lowBound, highBound);
   }
-}
\ No newline at end of file
+}
@@ -1,164 +1,111 @@
 package edu.hawaii.omr;
 
-import java.util.HashSet;
-import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
 import org.opencv.core.Core;
 import org.opencv.core.Scalar;
 
 public class StaffLine implements Cloneable {
 
-  private static final Point.XComparator xComparator = new Point.XComparator();
   private static final int lineHeightAdjustment = 2;
   private static final double modeThreshold = 0.33;
 
-  private SortedSet<Point> points;
-
-  private int leftEdgeX = -1;
-  private int leftEdgeTopY = -1;
-  private double leftEdgeMiddleY = -1;
-  private int leftEdgeBottomY = -1;
-
-  private int rightEdgeX = -1;
-  private int rightEdgeTopY = -1;
-  private double rightEdgeMiddleY = -1;
-  private int rightEdgeBottomY = -1;
-
-  private int minY = -1;
-  private int maxY = -1;
+  /**
+   * The top and bottom rows of the line in each column that it covers.
+   */
+  private ColumnExtents columns;
 
   private LineEquation equation = null;
 
   public StaffLine() {
-    this.points = new TreeSet<>(xComparator);
+    this.columns = new ColumnExtents();
   }
 
   public void addPoint(Point point) {
-    this.points.add(point);
-
-    this.leftEdgeX = -1;
-    this.leftEdgeTopY = -1;
-    this.leftEdgeMiddleY = -1;
-    this.leftEdgeBottomY = -1;
+    this.columns.add(point.getX(), point.getY());
+    this.invalidate();
+  }
 
-    this.rightEdgeX = -1;
-    this.rightEdgeTopY = -1;
-    this.leftEdgeMiddleY = -1;
-    this.rightEdgeBottomY = -1;
+  /**
+   * Adds the pixels from the top row to the bottom row (inclusive) of the given column.
+   */
+  public void addColumn(int x, int topY, int bottomY) {
+    this.columns.add(x, topY, bottomY);
+    this.invalidate();
+  }
 
-    this.minY = -1;
-    this.maxY = -1;
+  /**
+   * Adds every column of the given extents to the line.
+   */
+  public void addColumns(ColumnExtents columns) {
+    this.columns.addAll(columns);
+    this.invalidate();
+  }
 
+  private void invalidate() {
     this.equation = null;
   }
 
   public int getLeftEdgeX() {
-    if (this.leftEdgeX == -1) {
-      this.setBounds();
-    }
-    return this.leftEdgeX;
+    return this.columns.getMinX();
   }
 
   public int getLeftEdgeTopY() {
-    if (this.leftEdgeTopY == -1) {
-      this.setBounds();
-    }
-    return this.leftEdgeTopY;
+    return this.columns.getTop(this.columns.getMinX());
   }
 
   public double getLeftEdgeMiddleY() {
-    if (Double.compare(this.leftEdgeMiddleY, -1) == 0) {
-      this.setBounds();
-    }
-    return this.leftEdgeMiddleY;
+    int x = this.columns.getMinX();
+    return (this.columns.getTop(x) + this.columns.getBottom(x)) / 2.0;
   }
 
   public int getLeftEdgeBottomY() {
-    if (this.leftEdgeBottomY == -1) {
-      this.setBounds();
-    }
-    return this.leftEdgeBottomY;
+    return this.columns.getBottom(this.columns.getMinX());
   }
 
   public int getRightEdgeX() {
-    if (this.rightEdgeX == -1) {
-      this.setBounds();
-    }
-    return this.rightEdgeX;
+    return this.columns.getMaxX();
   }
 
   public double getRightEdgeMiddleY() {
-    if (Double.compare(this.rightEdgeMiddleY, -1) == 0) {
-      this.setBounds();
-    }
-    return this.rightEdgeMiddleY;
+    int x = this.columns.getMaxX();
+    return (this.columns.getTop(x) + this.columns.getBottom(x)) / 2.0;
   }
 
   public int getRightEdgeTopY() {
-    if (this.rightEdgeTopY == -1) {
-      this.setBounds();
-    }
-    return this.rightEdgeTopY;
+    return this.columns.getTop(this.columns.getMaxX());
   }
 
   public int getRightEdgeBottomY() {
-    if (this.rightEdgeBottomY == -1) {
-      this.setBounds();
-    }
-    return this.rightEdgeBottomY;
+    return this.columns.getBottom(this.columns.getMaxX());
   }
 
   public int getMinY() {
-    if (this.minY == -1) {
-      this.setBounds();
-    }
-    return this.minY;
+    return this.columns.getMinY();
   }
 
   public int getMaxY() {
-    if (this.maxY == -1) {
-      this.setBounds();
-    }
-
-    return this.maxY;
+    return this.columns.getMaxY();
   }
 
   public int getHorizontalCoverage() {
-    Set<Integer> xCoordinates = new HashSet<>();
-    for (Point point : this.points) {
-      xCoordinates.add(point.getX());
-    }
-    return xCoordinates.size();
+    return this.columns.countColumns();
   }
 
   public LineEquation getLineEquation() {
     if (this.equation == null) {
       this.equation =
-          new LineEquation(this.getLeftEdgeX(), this.leftEdgeMiddleY, this.getRightEdgeX(),
+          new LineEquation(this.getLeftEdgeX(), this.getLeftEdgeMiddleY(), this.getRightEdgeX(),
               this.getRightEdgeMiddleY());
     }
     return this.equation;
   }
 
   public void addStaffLine(StaffLine line) {
-    for (Point point : line.points) {
-      this.addPoint(point);
-    }
+    this.addColumns(line.columns);
   }
 
   public void translateVertically(int amount) {
-
-    // Keep pointer to old set of points
-    SortedSet<Point> points = this.points;
-
-    // Reset the point sets / maps
-    this.points = new TreeSet<>(xComparator);
-
-    // Re-add the translated points
-    for (Point point : points) {
-      this.addPoint(new Point(point.getX(), point.getY() + amount));
-    }
+    this.columns.translateVertically(amount);
+    this.invalidate();
   }
 
   public void extend(int leftEdgeX, int rightEdgeX) {
@@ -175,8 +122,9 @@ public class StaffLine implements Cloneable {
     int rightX = this.getRightEdgeX();
     int height = this.getMaxY() - this.getMinY();
     if (leftX == rightX) {
-      for (Point point : this.points) {
-        image.put(point.getY(), point.getX(), 255);
+      int bottomY = this.columns.getBottom(leftX);
+      for (int y = this.columns.getTop(leftX); y <= bottomY; y++) {
+        image.put(y, leftX, 255);
       }
     }
     else {
@@ -192,8 +140,9 @@ public class StaffLine implements Cloneable {
         (int) Math.ceil((info.getModeLineHeight(modeThreshold).getUpperBound()) / 2.0)
             + lineHeightAdjustment;
     if (leftX == rightX) {
-      for (Point point : this.points) {
-        image.put(point.getY(), point.getX(), 255);
+      int bottomY = this.columns.getBottom(leftX);
+      for (int y = this.columns.getTop(leftX); y <= bottomY; y++) {
+        image.put(y, leftX, 255);
       }
     }
     else {
@@ -203,7 +152,7 @@ public class StaffLine implements Cloneable {
   }
 
   public boolean contains(Point point) {
-    return this.points.contains(point);
+    return this.columns.contains(point.getX(), point.getY());
   }
 
   public boolean contains(Point point, StaffInfo info) {
@@ -211,47 +160,15 @@ public class StaffLine implements Cloneable {
   }
 
   public boolean contains(double x, double y, StaffInfo info) {
-    if (this.equation == null) {
-      this.equation =
-          new LineEquation(this.getLeftEdgeX(), this.leftEdgeMiddleY, this.getRightEdgeX(),
-              this.getRightEdgeMiddleY());
-    }
-
     double margin = Math.ceil(info.getModeLineHeight(modeThreshold).getUpperBound() / 2.0);
-    double lineValue = this.equation.calculateY(x);
+    double lineValue = this.getLineEquation().calculateY(x);
     return y >= lineValue - margin && y <= lineValue + margin;
   }
 
   @Override
   public StaffLine clone() {
     StaffLine clone = new StaffLine();
-    for (Point point : this.points) {
-      clone.addPoint(new Point(point.getX(), point.getY()));
-    }
+    clone.columns = this.columns.clone();
     return clone;
   }
-
-  private void setBounds() {
-    this.leftEdgeX = this.points.first().getX();
-    this.rightEdgeX = this.points.last().getX();
-
-    SortedSet<Integer> rows = new TreeSet<Integer>();
-    for (Point point : this.points) {
-      rows.add(point.getY());
-    }
-    this.minY = rows.first();
-    this.maxY = rows.last();
-
-    SortedSet<Point> leftColumn =
-        this.points.subSet(new Point(this.leftEdgeX, 0), new Point(this.leftEdgeX + 1, 0));
-    this.leftEdgeTopY = leftColumn.first().getY();
-    this.leftEdgeBottomY = leftColumn.last().getY();
-    this.leftEdgeMiddleY = (this.leftEdgeTopY + this.leftEdgeBottomY) / 2.0;
-
-    SortedSet<Point> rightColumn =
-        this.points.subSet(new Point(this.rightEdgeX, 0), new Point(this.rightEdgeX + 1, 0));
-    this.rightEdgeTopY = rightColumn.first().getY();
-    this.rightEdgeBottomY = rightColumn.last().getY();
-    this.rightEdgeMiddleY = (this.rightEdgeTopY + this.rightEdgeBottomY) / 2.0;
-  }
 }
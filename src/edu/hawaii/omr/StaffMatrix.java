@@ -5,9 +5,11 @@ import java.util.Collections;
 import java.util.List;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
+import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.imgproc.Imgproc;
 
@@ -22,8 +24,31 @@ public class StaffMatrix extends ImageMatrix {
   private final Staff staff;
   private SortedSet<MeasureLine> measureLines = null;
 
-  public StaffMatrix(Mat matrix, Staff staff, StaffInfo info) {
-    super(matrix);
+  // The results of each stage, kept until invalidate() is called
+  private ImageMatrix staffLineImage = null;
+  private ImageMatrix noLineImage = null;
+  private SortedSet<MeasureLine> measureLinesWithStaffLines = null;
+  private SortedSet<MeasureLine> measureLinesWithoutStaffLines = null;
+  private MeasureSplit measuresWithStaffLines = null;
+  private MeasureSplit measuresWithoutStaffLines = null;
+
+  // Splits that were replaced, kept since their measures may still be used by the caller
+  private final List<MeasureSplit> replacedSplits = new ArrayList<>();
+
+  /**
+   * Creates a staff image that views a region of the page instead of copying it.
+   * 
+   * @param page
+   *          The page containing the staff.
+   * @param region
+   *          The region of the page to view.
+   * @param staff
+   *          The staff, in the coordinates of the region.
+   * @param info
+   *          The info about the staffs in the page.
+   */
+  public StaffMatrix(ImageMatrix page, Rect region, Staff staff, StaffInfo info) {
+    super(page, region);
     this.staff = staff;
     this.info = info;
   }
@@ -36,23 +61,91 @@ public class StaffMatrix extends ImageMatrix {
     return this.info;
   }
 
-  public ImageMatrix getStaffLineImage() {
-    ImageMatrix image = new ImageMatrix(this.rows(), this.cols(), this.type());
-    if (this.staff != null) {
-      if (this.info != null) {
-        this.staff.addToImage(image, this.info);
+  /**
+   * Clears the results of every stage so that they are computed again the next time they are
+   * needed. Must be called after this image, its staff or the images returned by it are modified.
+   * The staff-line and no-line images returned before are released, while the measures returned
+   * before stay valid until this staff is closed.
+   */
+  public void invalidate() {
+    if (this.staffLineImage != null) {
+      this.staffLineImage.close();
+      this.staffLineImage = null;
+    }
+    if (this.noLineImage != null) {
+      this.noLineImage.close();
+      this.noLineImage = null;
+    }
+    this.measureLines = null;
+    this.measureLinesWithStaffLines = null;
+    this.measureLinesWithoutStaffLines = null;
+    this.replaceSplit(this.measuresWithStaffLines);
+    this.replaceSplit(this.measuresWithoutStaffLines);
+    this.measuresWithStaffLines = null;
+    this.measuresWithoutStaffLines = null;
+  }
+
+  /**
+   * Releases this image's pixels along with the results of every stage, including every measure
+   * that it was split into.
+   */
+  @Override
+  public void close() {
+    this.invalidate();
+    for (MeasureSplit split : this.replacedSplits) {
+      for (MeasureMatrix measure : split.measures) {
+        measure.close();
       }
-      else {
-        this.staff.addToImage(image);
+    }
+    this.replacedSplits.clear();
+    super.close();
+  }
+
+  /**
+   * Gets an image of the staff's lines. The image is computed once and shared, so it should not be
+   * modified without calling {@link #invalidate()}.
+   */
+  public ImageMatrix getStaffLineImage() {
+    if (this.staffLineImage == null) {
+      ImageMatrix image = new ImageMatrix(this.rows(), this.cols(), this.type());
+      if (this.staff != null) {
+        if (this.info != null) {
+          this.staff.addToImage(image, this.info);
+        }
+        else {
+          this.staff.addToImage(image);
+        }
       }
+      image.isBinary = this.isBinary;
+      image.hasWhiteForeground = this.hasWhiteForeground;
+      image.rowOffset = this.rowOffset;
+      image.colOffset = this.colOffset;
+      this.staffLineImage = image;
     }
-    image.isBinary = this.isBinary;
-    image.hasWhiteForeground = this.hasWhiteForeground;
-    return image;
+    return this.staffLineImage;
   }
 
   public ImageMatrix getNoLineImage() {
-    return this.subtractImagePreserve(this.getStaffLineImage(), true);
+    return this.getNoLineImage(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Gets this image with the staff's lines removed, removing them on the given pool if they have
+   * not been removed yet. The image is computed once and shared, so it should not be modified
+   * without calling {@link #invalidate()}.
+   * 
+   * @param threadPool
+   *          The pool to remove the lines on.
+   * @return The image without staff lines.
+   */
+  public ImageMatrix getNoLineImage(ForkJoinPool threadPool) {
+    if (this.noLineImage == null) {
+      this.noLineImage =
+          this.subtractImagePreserveParallel(this.getStaffLineImage(), true, 0, threadPool);
+      this.noLineImage.rowOffset = this.rowOffset;
+      this.noLineImage.colOffset = this.colOffset;
+    }
+    return this.noLineImage;
   }
 
   public ImageMatrix getMeasureLineImage() {
@@ -74,8 +167,27 @@ public class StaffMatrix extends ImageMatrix {
     this.findMeasureLines(true);
   }
 
+  /**
+   * Finds the measure lines in this image, or in the image without staff lines if asked to. The
+   * lines found for each image are kept, so finding them again only selects them.
+   */
   public void findMeasureLines(boolean removeLines) {
-    this.measureLines = new TreeSet<>(measureYComparator);
+    SortedSet<MeasureLine> found =
+        removeLines ? this.measureLinesWithoutStaffLines : this.measureLinesWithStaffLines;
+    if (found == null) {
+      found = this.detectMeasureLines(removeLines);
+      if (removeLines) {
+        this.measureLinesWithoutStaffLines = found;
+      }
+      else {
+        this.measureLinesWithStaffLines = found;
+      }
+    }
+    this.measureLines = found;
+  }
+
+  private SortedSet<MeasureLine> detectMeasureLines(boolean removeLines) {
+    SortedSet<MeasureLine> measureLines = new TreeSet<>(measureYComparator);
     Mat lines = new Mat();
     Imgproc.HoughLinesP(removeLines ? this.getNoLineImage() : this, lines, 1, Math.PI / 10, 5,
         this.info.getModeStaffHeight() - 5, 10);
@@ -84,17 +196,40 @@ public class StaffMatrix extends ImageMatrix {
       double[] vec = lines.get(0, i);
       if (vec[0] == vec[2]) {
         MeasureLine line = new MeasureLine(vec[0], vec[1], vec[2], vec[3]);
-        this.measureLines.add(line);
+        measureLines.add(line);
       }
     }
+    lines.release();
+    return measureLines;
   }
 
+  /**
+   * Splits this image, or the image without staff lines if asked to, at the current measure lines.
+   * The split is kept until different measure lines are found, so the same measures are returned
+   * by repeated calls and keep any notes that were found in them. The measures of a split that is
+   * replaced stay valid until this staff is closed.
+   */
   public List<MeasureMatrix> splitIntoMeasures(boolean removeLines) {
 
     if (this.measureLines == null) {
       this.findMeasureLines();
     }
 
+    MeasureSplit split = removeLines ? this.measuresWithoutStaffLines : this.measuresWithStaffLines;
+    if (split == null || split.measureLines != this.measureLines) {
+      this.replaceSplit(split);
+      split = new MeasureSplit(this.measureLines, this.split(removeLines));
+      if (removeLines) {
+        this.measuresWithoutStaffLines = split;
+      }
+      else {
+        this.measuresWithStaffLines = split;
+      }
+    }
+    return split.measures;
+  }
+
+  private List<MeasureMatrix> split(boolean removeLines) {
     List<MeasureMatrix> measureImages = new ArrayList<>();
     List<MeasureLine> sorted = new ArrayList<>(this.measureLines);
     Collections.sort(sorted, measureXComparator);
@@ -115,22 +250,43 @@ public class StaffMatrix extends ImageMatrix {
           || this.staff.contains(measure.getxEndCoordinate(), measure.getyEndCoordinate(),
               this.info, 4)) {
         MeasureMatrix measureImage =
-            new MeasureMatrix(removeLines ? noLines.submat(0, endY, startX,
-                (int) measure.xBeginCoordinate) : this.submat(0, endY, startX,
-                (int) measure.xBeginCoordinate), this.staff, this.info, startX);
+            new MeasureMatrix(removeLines ? noLines : this, new Rect(startX, 0,
+                (int) measure.xBeginCoordinate - startX, endY), this.staff, this.info);
         if (measureImage.cols() >= noteWidth && Core.countNonZero(measureImage) > 0) {
           measureImages.add(measureImage);
         }
+        else {
+          measureImage.close();
+        }
         startX = (int) Math.ceil(measure.xEndCoordinate);
       }
     }
-    measureImages.add(new MeasureMatrix(removeLines ? noLines.submat(0, endY, startX, endCol)
-        : this.submat(0, endY, startX, endCol), this.staff, this.info, startX));
-    return measureImages;
+    measureImages.add(new MeasureMatrix(removeLines ? noLines : this, new Rect(startX, 0, endCol
+        - startX, endY), this.staff, this.info));
+    return Collections.unmodifiableList(measureImages);
   }
 
   public MeasureMatrix toMeasureMatrix(boolean removeLines) {
-    return new MeasureMatrix(removeLines ? this.getNoLineImage() : this, this.staff, this.info, 0);
+    return new MeasureMatrix(removeLines ? this.getNoLineImage() : this, new Rect(0, 0,
+        this.cols(), this.rows()), this.staff, this.info);
   }
 
+  private void replaceSplit(MeasureSplit split) {
+    if (split != null) {
+      this.replacedSplits.add(split);
+    }
+  }
+
+  /**
+   * The measures that the image was split into and the measure lines it was split at.
+   */
+  private static class MeasureSplit {
+    private final SortedSet<MeasureLine> measureLines;
+    private final List<MeasureMatrix> measures;
+
+    public MeasureSplit(SortedSet<MeasureLine> measureLines, List<MeasureMatrix> measures) {
+      this.measureLines = measureLines;
+      this.measures = measures;
+    }
+  }
 }
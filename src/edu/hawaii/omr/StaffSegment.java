@@ -0,0 +1,60 @@
+package edu.hawaii.omr;
+
+/**
+ * The part of a staff found in a single column: the top and bottom rows of each of the five lines.
+ * 
+ * @author Christopher Foo
+ * 
+ */
+public class StaffSegment {
+
+  private final int x;
+  private final int[] tops;
+  private final int[] bottoms;
+
+  /**
+   * Creates a new segment.
+   * 
+   * @param x
+   *          The column of the segment.
+   * @param tops
+   *          The top row of each line, from the top line to the bottom line.
+   * @param bottoms
+   *          The bottom row of each line, from the top line to the bottom line.
+   */
+  public StaffSegment(int x, int[] tops, int[] bottoms) {
+    this.x = x;
+    this.tops = tops;
+    this.bottoms = bottoms;
+  }
+
+  public int getX() {
+    return this.x;
+  }
+
+  public int getTop(int lineIndex) {
+    return this.tops[lineIndex];
+  }
+
+  public int getBottom(int lineIndex) {
+    return this.bottoms[lineIndex];
+  }
+
+  /**
+   * Gets the distance from the top of the first line to the bottom of the last line.
+   * 
+   * @return The height of the segment.
+   */
+  public int getHeight() {
+    return this.bottoms[4] - this.tops[0];
+  }
+
+  public Staff toStaff() {
+    StaffLine[] lines = new StaffLine[5];
+    for (int i = 0; i < 5; i++) {
+      lines[i] = new StaffLine();
+      lines[i].addColumn(this.x, this.tops[i], this.bottoms[i]);
+    }
+    return new Staff(lines[0], lines[1], lines[2], lines[3], lines[4]);
+  }
+}
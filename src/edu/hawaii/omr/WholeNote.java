@@ -1,13 +1,11 @@
 package edu.hawaii.omr;
 
-import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 
 public class WholeNote extends NoteHead {
 
   private double angle = 0;
-  private double height;
   public final double threshold = 0.60;
 
   public WholeNote(int xCoordinate, int yCoordinate) {
@@ -18,54 +16,42 @@ public class WholeNote extends NoteHead {
   }
 
   public WholeNote(int height) {
-    this.height = height;
+    super.height = height;
+    super.angleRotation = angle;
+    super.type = "Whole";
   }
 
   public Mat makeNoteHeadTemplate() {
     super.angleRotation = angle;
 
-    template = new Mat((int) (2 * height), (int) (2 * height), CvType.CV_8UC1);
-
-    for (int y = 0; y > (2 * height * -1); y--) {
-      for (int x = 0; x < (2 * height); x++) {
-
-        double value =
-            (Math.pow((x - height), 2) / Math.pow(height, 2))
-                + (Math.pow((y + height), 2) / Math.pow(height / 2.0, 2));
-        if (value < 1) {
-          double data[] = { 255 };
-          template.put(Math.abs(y), x, data);
-        }
-        else {
-          double data[] = { 0 };
-          template.put(Math.abs(y), x, data);
-        }
-      }
-    }
-
-    Mat holeTemplate = new Mat((int) (2 * height), (int) (2 * height), CvType.CV_8UC1);
+    int size = (int) (2 * height);
+    PixelBuffer pixels = new PixelBuffer(size, size, 1);
     double holeAngleRotation = 2 * Math.PI / 3.0;
+    double holeCos = Math.cos(holeAngleRotation);
+    double holeSin = Math.sin(holeAngleRotation);
+    double heightSquared = height * height;
+    double halfHeightSquared = (height / 2.0) * (height / 2.0);
+    double thirdHeightSquared = (height / 3.0) * (height / 3.0);
+
+    // The head is the outer ellipse minus the rotated inner ellipse of the hole
     for (int y = 0; y > (2 * height * -1); y--) {
       for (int x = 0; x < (2 * height); x++) {
-        double value =
-            (Math.pow(
-                (x - height) * Math.cos(holeAngleRotation) + (y + height)
-                    * Math.sin(holeAngleRotation), 2) / Math.pow(height / 2.0, 2))
-                + (Math.pow(
-                    (x - height) * Math.sin(holeAngleRotation) - (y + height)
-                        * Math.cos(holeAngleRotation), 2) / Math.pow(height / 3.0, 2));
-        if (value < 1) {
-          double data[] = { 255 };
-          holeTemplate.put(Math.abs(y), x, data);
-        }
-        else {
-          double data[] = { 0 };
-          holeTemplate.put(Math.abs(y), x, data);
+        double dx = x - height;
+        double dy = y + height;
+        double value = (dx * dx / heightSquared) + (dy * dy / halfHeightSquared);
+
+        double holeX = dx * holeCos + dy * holeSin;
+        double holeY = dx * holeSin - dy * holeCos;
+        double holeValue =
+            (holeX * holeX / halfHeightSquared) + (holeY * holeY / thirdHeightSquared);
+        if ((value < 1) != (holeValue < 1)) {
+          pixels.set(x, Math.abs(y), 255);
         }
       }
     }
 
-    Core.bitwise_xor(template, holeTemplate, template);
+    template = new Mat(size, size, CvType.CV_8UC1);
+    pixels.writeTo(template);
     return template;
   }
 